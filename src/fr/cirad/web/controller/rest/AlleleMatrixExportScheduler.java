@@ -0,0 +1,319 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.cirad.tools.ProgressIndicator;
+
+/**
+ * Runs asynchronous alleleMatrix exports on a bounded pool of workers. Jobs wait in a priority queue
+ * (owners with fewer active jobs first, then FIFO) and admission is limited per database and per owner.
+ * Jobs are identified by an export key (hash of the normalized request): submitting a job whose key matches an
+ * active one attaches to the latter instead of queueing a duplicate. Each job thus has one or more owners (identified
+ * by their extractId), and is only aborted when the last of them cancels it.
+ *
+ * @author sempere
+ */
+public class AlleleMatrixExportScheduler {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(AlleleMatrixExportScheduler.class);
+
+	static public final String QUEUED_DESCRIPTION_PREFIX = "Queued at position ";
+
+	static public class ExportJob implements Comparable<ExportJob> {
+		private final String extractId;
+		private final String exportKey;
+		private final String database;
+		private final String ownerKey;
+		private final int priority;	// lower is served first
+		private final long sequence;
+		private final ProgressIndicator progress;
+		private final AlleleMatrixExportTask task;
+		private final Map<String /* extractId */, String /* ownerKey */> owners = new LinkedHashMap<>();	// guarded by the scheduler
+		private volatile boolean fStarted = false;
+		private volatile boolean fEnded = false;
+
+		private ExportJob(String extractId, String exportKey, String database, String ownerKey, int priority, long sequence, ProgressIndicator progress, AlleleMatrixExportTask task) {
+			this.extractId = extractId;
+			this.exportKey = exportKey;
+			this.database = database;
+			this.ownerKey = ownerKey;
+			this.priority = priority;
+			this.sequence = sequence;
+			this.progress = progress;
+			this.task = task;
+			owners.put(extractId, ownerKey);
+		}
+
+		/**
+		 * @return the extractId the job was originally submitted with
+		 */
+		public String getExtractId() {
+			return extractId;
+		}
+
+		public String getExportKey() {
+			return exportKey;
+		}
+
+		public String getDatabase() {
+			return database;
+		}
+
+		public String getOwnerKey() {
+			return ownerKey;
+		}
+
+		public ProgressIndicator getProgress() {
+			return progress;
+		}
+
+		public AlleleMatrixExportTask getTask() {
+			return task;
+		}
+
+		public boolean isStarted() {
+			return fStarted;
+		}
+
+		/**
+		 * @return the extractIds of requesters currently attached to this job
+		 */
+		public List<String> getOwnerExtractIds() {
+			synchronized (owners) {
+				return new ArrayList<>(owners.keySet());
+			}
+		}
+
+		@Override
+		public int compareTo(ExportJob other) {
+			int result = Integer.compare(priority, other.priority);
+			return result != 0 ? result : Long.compare(sequence, other.sequence);
+		}
+	}
+
+	private final PriorityBlockingQueue<ExportJob> queue = new PriorityBlockingQueue<>();
+	private final Map<String /* extractId */, ExportJob> activeJobs = new ConcurrentHashMap<>();	// queued or running
+	private final Map<String /* exportKey */, ExportJob> activeJobsByExportKey = new ConcurrentHashMap<>();
+	private final AtomicLong sequenceGenerator = new AtomicLong();
+	private final ExecutorService workers;
+	private final ExecutorService segmentWorkers;	// used by jobs that write several segments in parallel, and by chunk prefetchers
+	private final int maxJobsPerDatabase, maxJobsPerOwner;
+	private volatile boolean fShutdown = false;
+
+	public AlleleMatrixExportScheduler(int nWorkerCount, int maxJobsPerDatabase, int maxJobsPerOwner) {
+		this.maxJobsPerDatabase = maxJobsPerDatabase;
+		this.maxJobsPerOwner = maxJobsPerOwner;
+		final AtomicInteger threadCounter = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(nWorkerCount, r -> {
+			Thread t = new Thread(r, "alleleMatrixExportWorker-" + threadCounter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		for (int i = 0; i < nWorkerCount; i++)
+			workers.execute(this::processQueue);
+		final AtomicInteger segmentThreadCounter = new AtomicInteger();
+		segmentWorkers = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "alleleMatrixSegmentWorker-" + segmentThreadCounter.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		LOG.info("alleleMatrix export scheduler started with " + nWorkerCount + " worker(s)");
+	}
+
+	/**
+	 * Queues an export job, registering its progress indicator so that its status may be queried right away.
+	 *
+	 * @return the new job, or the active one with the same export key if any (in which case the passed task is discarded)
+	 * @throws RejectedExecutionException if the database or the owner already has too many active jobs
+	 */
+	synchronized public ExportJob submit(String extractId, String exportKey, String database, String ownerKey, ProgressIndicator progress, AlleleMatrixExportTask task) throws RejectedExecutionException {
+		ExportJob identicalJob = activeJobsByExportKey.get(exportKey);
+		if (identicalJob != null && !identicalJob.fEnded && !identicalJob.progress.isAborted()) {
+			synchronized (identicalJob.owners) {
+				identicalJob.owners.put(extractId, ownerKey);
+			}
+			activeJobs.put(extractId, identicalJob);
+			LOG.debug("alleleMatrix export " + extractId + " attached to identical running export " + identicalJob.extractId);
+			return identicalJob;
+		}
+
+		int nDbJobCount = 0, nOwnerJobCount = 0;
+		for (ExportJob job : new HashSet<>(activeJobs.values())) {	// attached requesters map to the same job
+			if (job.database.equals(database))
+				nDbJobCount++;
+			if (job.ownerKey.equals(ownerKey))
+				nOwnerJobCount++;
+		}
+		if (nDbJobCount >= maxJobsPerDatabase)
+			throw new RejectedExecutionException("Too many alleleMatrix exports in progress for database " + database);
+		if (nOwnerJobCount >= maxJobsPerOwner)
+			throw new RejectedExecutionException("Too many alleleMatrix exports in progress for this user");
+
+		ExportJob job = new ExportJob(extractId, exportKey, database, ownerKey, nOwnerJobCount, sequenceGenerator.incrementAndGet(), progress, task);
+		task.setJob(job);
+		ProgressIndicator.registerProgressIndicator(progress);
+		activeJobs.put(extractId, job);
+		activeJobsByExportKey.put(exportKey, job);
+		queue.add(job);
+		updateQueuePositions();
+		return job;
+	}
+
+	/**
+	 * Detaches the given requester from its queued or running job, which gets cancelled if no other requester is
+	 * attached to it. Running jobs are expected to check ProgressIndicator.isAborted() between chunks.
+	 *
+	 * @return false if no such job is queued or running
+	 */
+	synchronized public boolean cancel(String extractId) {
+		ExportJob job = activeJobs.get(extractId);
+		if (job == null)
+			return false;
+
+		Map.Entry<String, String> remainingOwner;
+		synchronized (job.owners) {
+			job.owners.remove(extractId);
+			remainingOwner = job.owners.isEmpty() ? null : job.owners.entrySet().iterator().next();
+		}
+		activeJobs.remove(extractId, job);
+		if (remainingOwner != null) {
+			job.task.transferRecord(extractId, remainingOwner.getKey(), remainingOwner.getValue());
+			LOG.info("alleleMatrix export " + extractId + " detached from export still required by " + remainingOwner.getKey());
+			return true;
+		}
+
+		job.progress.abort();
+		job.progress.setError("Export cancelled by user");
+		if (queue.remove(job)) {
+			unregister(job);
+			updateQueuePositions();
+		}
+		LOG.info("alleleMatrix export " + extractId + " cancelled" + (job.fStarted ? " while running" : " while queued"));
+		return true;
+	}
+
+	public ExecutorService getSegmentExecutor() {
+		return segmentWorkers;
+	}
+
+	public ExportJob getActiveJob(String extractId) {
+		return activeJobs.get(extractId);
+	}
+
+	public ExportJob getActiveJobByExportKey(String exportKey) {
+		return activeJobsByExportKey.get(exportKey);
+	}
+
+	/**
+	 * @return whether the given file is the output file of an active job, or one of its temporary files
+	 */
+	public boolean isWritingTo(String fileName) {
+		for (ExportJob job : activeJobsByExportKey.values())
+			if (fileName.startsWith(job.task.getOutputFile().getName()))
+				return true;
+		return false;
+	}
+
+	synchronized private void unregister(ExportJob job) {
+		job.fEnded = true;
+		for (String ownerExtractId : job.getOwnerExtractIds())
+			activeJobs.remove(ownerExtractId, job);
+		activeJobs.remove(job.extractId, job);
+		activeJobsByExportKey.remove(job.exportKey, job);
+	}
+
+	/**
+	 * @return the 1-based position of the job in the queue, 0 if it is running, -1 if it is no longer active
+	 */
+	public int getQueuePosition(ExportJob job) {
+		if (job == null || job.fEnded)
+			return -1;
+		if (job.fStarted)
+			return 0;
+		ExportJob[] queuedJobs = queue.toArray(new ExportJob[0]);
+		Arrays.sort(queuedJobs);
+		for (int i = 0; i < queuedJobs.length; i++)
+			if (queuedJobs[i] == job)
+				return i + 1;
+		return 0;
+	}
+
+	private void updateQueuePositions() {
+		ExportJob[] queuedJobs = queue.toArray(new ExportJob[0]);
+		Arrays.sort(queuedJobs);
+		for (int i = 0; i < queuedJobs.length; i++)
+			queuedJobs[i].progress.setProgressDescription(QUEUED_DESCRIPTION_PREFIX + (i + 1));
+	}
+
+	private void processQueue() {
+		while (!fShutdown && !Thread.currentThread().isInterrupted()) {
+			ExportJob job;
+			try {
+				job = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (fShutdown) {	// leave it for resumption at next startup
+				queue.add(job);
+				return;
+			}
+
+			job.fStarted = true;
+			job.progress.setProgressDescription(null);
+			updateQueuePositions();
+			try {
+				if (!job.progress.isAborted()) {
+					job.task.run();
+					if (job.progress.isComplete() && job.task.getMetrics() != null)
+						ExportMetrics.aggregate(job.database, job.task.getMetrics());
+				}
+			} catch (Throwable t) {
+				job.progress.setError("Error running export: " + t.getMessage());
+				LOG.error("Error running alleleMatrix export " + job.extractId, t);
+			} finally {
+				unregister(job);
+			}
+		}
+	}
+
+	/**
+	 * Interrupts running jobs without aborting them, so that they may be resumed from their persisted state at next startup
+	 */
+	public void shutdown() {
+		fShutdown = true;
+		workers.shutdownNow();
+		segmentWorkers.shutdownNow();
+	}
+}
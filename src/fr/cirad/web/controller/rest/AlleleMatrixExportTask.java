@@ -0,0 +1,401 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.StringUtils;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import fr.cirad.mgdb.exporting.IExportHandler;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+import fr.cirad.mgdb.model.mongo.subtypes.Callset;
+import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
+import fr.cirad.mgdb.model.mongo.subtypes.VariantRunDataId;
+import fr.cirad.mgdb.model.mongodao.MgdbDao;
+import fr.cirad.tools.ProgressIndicator;
+
+/**
+ * Writes an allele matrix to a TSV file, possibly compressed according to the selected ExportOutputFormat. Instances are meant to be run by an AlleleMatrixExportScheduler worker.
+ * When nParallelism is greater than 1, the marker list is split into contiguous segments that are written concurrently
+ * (each with its own DB queries) and then concatenated in marker order.
+ * Sequential exports save a checkpoint into their ExportJobRecord after each chunk, which allows resuming them if
+ * they get interrupted (parallel ones are started over). That record belongs to one of the job's owners (it is handed
+ * over to another one if its owner cancels), and its final state is copied to the records of the others.
+ *
+ * @author sempere
+ */
+public class AlleleMatrixExportTask implements Runnable {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(AlleleMatrixExportTask.class);
+
+	/**
+	 * Number of fetched chunks allowed to wait for the writer (one more may be in the process of being fetched)
+	 */
+	static private final int PREFETCH_BUFFER_SIZE = 1;
+
+	static public final String TEMP_FILE_SUFFIX = ".tmp";
+
+	static private final byte[] LINE_SEPARATOR_BYTES = IExportHandler.LINE_SEPARATOR.getBytes(StandardCharsets.UTF_8);
+
+	private MongoTemplate mongoTemplate;
+	private List<Callset> callsets;
+	private Collection<Integer> sortedMarkerprofileDbIDs;
+	private List<String> markerList;
+	private String unknownGtCode;
+	private String unPhasedSeparator;
+	private String phasedSeparator;
+	private Boolean expandHomozygotes;
+	private File outputFile;
+	private ExportOutputFormat outputFormat;
+	private ProgressIndicator progress;
+	private int nParallelism;
+	private ExecutorService segmentExecutor;
+	private ExportJobRecord record;
+	private ExportFileJanitor fileJanitor;
+	private volatile ExportMetrics metrics;
+	private volatile AlleleMatrixExportScheduler.ExportJob job;
+
+	private int nChunkSize;
+	private final AtomicInteger processedMarkerCount = new AtomicInteger();
+	private volatile boolean fStopRequested = false;
+
+	private interface ChunkCompletionListener {
+		void chunkWritten(int nChunkIndex) throws Exception;
+	}
+
+	public AlleleMatrixExportTask(MongoTemplate mongoTemplate, List<Callset> callsets, Collection<Integer> sortedMarkerprofileDbIDs, List<String> markerList, String unknownGtCode, String unPhasedSeparator, String phasedSeparator, Boolean expandHomozygotes, File outputFile, ExportOutputFormat outputFormat, ProgressIndicator progress, int nParallelism, ExecutorService segmentExecutor, ExportJobRecord record, ExportFileJanitor fileJanitor) {
+		this.mongoTemplate = mongoTemplate;
+		this.callsets = callsets;
+		this.sortedMarkerprofileDbIDs = sortedMarkerprofileDbIDs;
+		this.markerList = markerList;
+		this.unknownGtCode = unknownGtCode;
+		this.unPhasedSeparator = unPhasedSeparator;
+		this.phasedSeparator = phasedSeparator;
+		this.expandHomozygotes = expandHomozygotes;
+		this.outputFile = outputFile;
+		this.outputFormat = outputFormat;
+		this.progress = progress;
+		this.nParallelism = nParallelism;
+		this.segmentExecutor = segmentExecutor;
+		this.record = record;
+		this.fileJanitor = fileJanitor;
+	}
+
+	void setJob(AlleleMatrixExportScheduler.ExportJob job) {
+		this.job = job;
+	}
+
+	/**
+	 * Makes the given owner's record the one this export keeps up to date, if it was the cancelled owner's
+	 */
+	void transferRecord(String fromExtractId, String toExtractId, String toOwnerKey) {
+		synchronized (record) {
+			if (!record.extractId.equals(fromExtractId))
+				return;
+			record.extractId = toExtractId;
+			record.ownerKey = toOwnerKey;
+		}
+		saveRecord();
+	}
+
+	public ProgressIndicator getProgress() {
+		return progress;
+	}
+
+	public File getOutputFile() {
+		return outputFile;
+	}
+
+	@Override
+	public void run() {
+		long before = System.currentTimeMillis();
+		File tempFile = new File(outputFile.getPath() + TEMP_FILE_SUFFIX);
+		boolean fResuming = record.completedChunkCount > 0 && record.chunkSize > 0 && tempFile.length() >= record.checkpointOffset;
+		nChunkSize = fResuming ? record.chunkSize : IExportHandler.computeQueryChunkSize(mongoTemplate, markerList.size());
+		metrics = new ExportMetrics(markerList.size(), nChunkSize);
+		int nSegmentCount = fResuming ? 1 : Math.max(1, Math.min(nParallelism, markerList.size() / nChunkSize));	// no point in working on segments smaller than a chunk
+		boolean fInterrupted = false;
+
+		record.chunkSize = nChunkSize;
+		if (!fResuming)
+			record.setCheckpoint(0, 0);
+		record.setState(ExportJobRecord.State.RUNNING);
+		saveRecord();
+		try {
+			File outputLocation = outputFile.getParentFile();
+			if (!outputLocation.exists() && !outputLocation.mkdirs()) {
+				throw new Exception("Unable to create folder: " + outputLocation);
+			}
+
+			if (nSegmentCount == 1) {
+				final int nFirstChunk = fResuming ? record.completedChunkCount : 0;
+				processedMarkerCount.set(nFirstChunk * nChunkSize);
+				metrics.skipMarkers(nFirstChunk * nChunkSize);
+				if (fResuming)
+					LOG.info("Resuming alleleMatrix export to " + outputFile.getName() + " from chunk " + nFirstChunk);
+				try (CheckpointableOutputStream os = new CheckpointableOutputStream(tempFile, fResuming ? record.checkpointOffset : -1, outputFormat)) {
+					if (!fResuming)
+						os.write(getHeaderLine().getBytes(StandardCharsets.UTF_8));
+					writeMarkerRange(os, nFirstChunk * nChunkSize, markerList.size(), nChunkIndex -> {
+						record.setCheckpoint(nFirstChunk + nChunkIndex + 1, os.checkpoint());
+						saveRecord();
+					});
+				}
+			}
+			else
+				writeSegmentsInParallel(nSegmentCount, tempFile);
+
+			if (progress.isAborted()) {
+				LOG.info("alleleMatrix export to " + outputFile.getName() + " was cancelled");
+				record.setState(ExportJobRecord.State.CANCELLED);
+				return;
+			}
+			Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);	// the output file only becomes visible (and reusable) once complete
+			if (fileJanitor != null)
+				fileJanitor.touch(outputFile);	// so that it counts towards the disk quota right away
+			record.outputFileName = outputFile.getName();
+			record.setState(ExportJobRecord.State.FINISHED);
+			progress.setCurrentStepProgress(100);
+			progress.markAsComplete();
+			LOG.debug("alleleMatrix took " + (System.currentTimeMillis() - before) / 1000d + "s" + (nSegmentCount > 1 ? " using " + nSegmentCount + " parallel segments" : ""));
+		} catch (Throwable t) {	// errors too, so that the job does not look in progress forever
+			fInterrupted = t instanceof InterruptedException || Thread.currentThread().isInterrupted();
+			if (fInterrupted) {	// most likely a shutdown: leave the job in RUNNING state so it gets resumed
+				Thread.currentThread().interrupt();	// let the worker know it has to stop
+				LOG.info("alleleMatrix export to " + outputFile.getName() + " was interrupted after " + record.completedChunkCount + " chunks");
+			}
+			else {
+				record.setState(ExportJobRecord.State.FAILED);
+				progress.setError("Error writing alleleMatrix to " + outputFile.getName() + ": " + t.getMessage());
+				LOG.error("Error writing alleleMatrix to tsv file", t);
+			}
+		} finally {
+			metrics.markAsEnded();
+			if (!fInterrupted) {
+				saveRecord();
+				propagateFinalState();
+				if (tempFile.exists() && !tempFile.delete())
+					LOG.warn("Unable to delete " + tempFile.getPath());
+			}
+		}
+	}
+
+	/**
+	 * @return this export's throughput metrics, or null if it has not started yet
+	 */
+	public ExportMetrics getMetrics() {
+		return metrics;
+	}
+
+	private void saveRecord() {
+		synchronized (record) {
+			try {
+				mongoTemplate.save(record);
+			} catch (Exception e) {
+				LOG.warn("Unable to save state of alleleMatrix export " + record.extractId, e);
+			}
+		}
+	}
+
+	/**
+	 * Copies this export's final state to the records of other requesters attached to it
+	 */
+	private void propagateFinalState() {
+		if (job == null)
+			return;
+		List<String> otherOwnerExtractIds = job.getOwnerExtractIds();
+		otherOwnerExtractIds.remove(record.extractId);
+		if (otherOwnerExtractIds.isEmpty())
+			return;
+		try {
+			mongoTemplate.updateMulti(new Query(Criteria.where("_id").in(otherOwnerExtractIds)), new Update().set(ExportJobRecord.FIELDNAME_STATE, record.state.name()).set(ExportJobRecord.FIELDNAME_UPDATE_DATE, new Date()), ExportJobRecord.class);
+		} catch (Exception e) {
+			LOG.warn("Unable to save state of alleleMatrix exports attached to " + record.extractId, e);
+		}
+	}
+
+	private String getHeaderLine() {
+		return "markerprofileDbIds\t" + StringUtils.join(sortedMarkerprofileDbIDs, "\t");
+	}
+
+	private boolean shallStop() {
+		return fStopRequested || progress.isAborted();
+	}
+
+	/**
+	 * Splits the marker list into contiguous ranges, each written by a separate worker into its own segment file,
+	 * then concatenates segments into the output file in marker order.
+	 */
+	private void writeSegmentsInParallel(int nSegmentCount, File targetFile) throws Exception {
+		int nSegmentSize = (int) Math.ceil((double) markerList.size() / nSegmentCount);
+		List<File> segmentFiles = new ArrayList<>();
+		List<Future<Void>> segmentFutures = new ArrayList<>();
+		try {
+			for (int nStart = 0; nStart < markerList.size(); nStart += nSegmentSize) {
+				final int nSegmentStart = nStart, nSegmentEnd = Math.min(markerList.size(), nStart + nSegmentSize);
+				final File segmentFile = new File(outputFile.getPath() + ".part" + segmentFiles.size());
+				segmentFiles.add(segmentFile);
+				segmentFutures.add(segmentExecutor.submit(() -> {
+					try (OutputStream segmentStream = outputFormat.open(segmentFile, false)) {
+						writeMarkerRange(segmentStream, nSegmentStart, nSegmentEnd, null);
+					}
+					return null;
+				}));
+			}
+
+			for (Future<Void> segmentFuture : segmentFutures)
+				try {
+					segmentFuture.get();
+				} catch (ExecutionException ee) {
+					throw ee.getCause() instanceof Exception ? (Exception) ee.getCause() : ee;
+				}
+
+			if (progress.isAborted())
+				return;
+
+			try (FileOutputStream fos = new FileOutputStream(targetFile)) {
+				fos.write(outputFormat.encodePart(getHeaderLine()));
+				FileChannel outputChannel = fos.getChannel();
+				for (File segmentFile : segmentFiles)
+					try (FileChannel segmentChannel = FileChannel.open(segmentFile.toPath(), StandardOpenOption.READ)) {
+						long nPos = 0, nSize = segmentChannel.size();
+						while (nPos < nSize)
+							nPos += segmentChannel.transferTo(nPos, nSize - nPos, outputChannel);
+					}
+				fos.write(outputFormat.getTerminator());
+			}
+		} catch (Exception e) {
+			fStopRequested = true;	// makes remaining segment workers give up
+			throw e;
+		} finally {
+			for (Future<Void> segmentFuture : segmentFutures)
+				if (!segmentFuture.isDone())
+					try {
+						segmentFuture.get();	// wait for it to notice the stop request before deleting its file
+					} catch (Exception ignored) {
+					}
+			for (File segmentFile : segmentFiles)
+				if (segmentFile.exists() && !segmentFile.delete())
+					LOG.warn("Unable to delete " + segmentFile.getPath());
+		}
+	}
+
+	/**
+	 * Writes rows for markers in [nStart, nEnd[, notifying the passed listener (if any) after each chunk. When nStart > 0, the preceding marker is fetched too (but not written) so
+	 * that phasing information is consistent with what a sequential export would produce.
+	 */
+	private void writeMarkerRange(OutputStream os, int nStart, int nEnd, ChunkCompletionListener chunkCompletionListener) throws Exception {
+		final String warmupMarkerId = nStart > 0 ? markerList.get(nStart - 1) : null;
+		int nChunkCount = (int) Math.ceil((double) (nEnd - nStart) / nChunkSize);
+
+		// chunk N+1 is fetched from the DB while chunk N is being written
+		try (ChunkPrefetcher<LinkedHashMap<VariantData, Collection<VariantRunData>>> prefetcher = new ChunkPrefetcher<>(nChunkCount, PREFETCH_BUFFER_SIZE, nFetchedChunkIndex -> {
+				if (shallStop())
+					return null;
+				long nFetchStart = System.nanoTime();
+				List<String> markerSubList = markerList.subList(nStart + nFetchedChunkIndex * nChunkSize, Math.min(nEnd, nStart + (nFetchedChunkIndex + 1) * nChunkSize));
+				if (nFetchedChunkIndex == 0 && warmupMarkerId != null) {
+					markerSubList = new ArrayList<>(markerSubList);
+					markerSubList.add(0, warmupMarkerId);
+				}
+				LinkedHashMap<VariantData, Collection<VariantRunData>> chunk = MgdbDao.getCallSetGenotypes(mongoTemplate, callsets, markerSubList, true, null/* new Sort(Sort.Direction.DESC, "_id") */);
+				metrics.addFetchTime(System.nanoTime() - nFetchStart);
+				return chunk;
+			}, segmentExecutor, "alleleMatrixPrefetch-" + outputFile.getName() + "-" + nStart)) {
+
+			GenotypeRenderer genotypeRenderer = new GenotypeRenderer(unknownGtCode, unPhasedSeparator, phasedSeparator, expandHomozygotes);
+			HashMap<Callset, String> previousPhasingIds = new HashMap<>();
+			LinkedHashMap<VariantData, Collection<VariantRunData>> variantsAndRuns;
+			int nChunkIndex = 0;
+			while ((variantsAndRuns = prefetcher.next()) != null) {
+				if (shallStop())
+					return;
+
+				long nFormatStart = System.nanoTime(), nCellCount = 0, nByteCount = 0;
+				VariantData[] variants = variantsAndRuns.keySet().toArray(new VariantData[variantsAndRuns.size()]);
+				for (int i = 0; i < variantsAndRuns.size(); i++) {
+					Collection<VariantRunData> runs = variantsAndRuns.get(variants[i]);
+					if (runs != null) {
+						genotypeRenderer.setVariant(variants[i]);
+						for (VariantRunData run : runs) {
+							VariantRunDataId variantRunDataId = run.getId();
+							boolean fWarmupRow = nChunkIndex == 0 && variantRunDataId.getVariantId().equals(warmupMarkerId);
+							if (!fWarmupRow) {
+								byte[] variantIdBytes = variantRunDataId.getVariantId().getBytes(StandardCharsets.UTF_8);
+								os.write(LINE_SEPARATOR_BYTES);
+								os.write(variantIdBytes);
+								nByteCount += LINE_SEPARATOR_BYTES.length + variantIdBytes.length + callsets.size() /* tabs */;
+								nCellCount += callsets.size();
+							}
+							for (Callset callSet : callsets) {
+								SampleGenotype sampleGenotype = run.getSampleGenotypes().get(callSet.getId());
+								if (sampleGenotype == null) {
+									if (!fWarmupRow)
+										os.write('\t');
+									continue; // no data in this run + marker for that callset
+								}
+
+								String currentPhId = (String) sampleGenotype.getAdditionalInfo() .get(VariantData.GT_FIELD_PHASED_ID);
+								boolean fPhased = currentPhId != null && currentPhId.equals(previousPhasingIds.get(callSet));
+								previousPhasingIds.put(callSet, currentPhId == null ? variantRunDataId.getVariantId() : currentPhId);
+								if (fWarmupRow)
+									continue;
+
+								byte[] genotypeBytes = genotypeRenderer.renderBytes(sampleGenotype.getCode(), fPhased);
+								os.write('\t');
+								os.write(genotypeBytes);
+								nByteCount += genotypeBytes.length;
+							}
+						}
+					}
+				}
+				int nChunkMarkerCount = Math.min(nEnd, nStart + (nChunkIndex + 1) * nChunkSize) - (nStart + nChunkIndex * nChunkSize);
+				metrics.addChunk(nChunkMarkerCount, nCellCount, nByteCount, System.nanoTime() - nFormatStart);
+				progress.setCurrentStepProgress((int) (processedMarkerCount.addAndGet(nChunkMarkerCount) * 100L / markerList.size()));
+				if (chunkCompletionListener != null)
+					chunkCompletionListener.chunkWritten(nChunkIndex);
+				nChunkIndex++;
+			}
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes BGZF (blocked gzip, as produced by bgzip), i.e. a series of independent gzip members holding at most 64KB each.
+ * The output remains readable by any gzip decompressor. Streams meant to be concatenated with others may be closed
+ * without writing the BGZF end-of-file marker block.
+ *
+ * @author sempere
+ */
+public class BgzfOutputStream extends FilterOutputStream {
+
+	static private final int MAX_BLOCK_INPUT_SIZE = 0xff00;	// same as bgzip, guarantees compressed blocks fit in 64KB
+	static private final int BLOCK_HEADER_SIZE = 18, BLOCK_FOOTER_SIZE = 8;
+
+	static public final byte[] EOF_BLOCK = new byte[] {
+		0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+		0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+	};
+
+	private final byte[] uncompressedBuffer = new byte[MAX_BLOCK_INPUT_SIZE];
+	private final byte[] blockBuffer = new byte[65536];
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+	private final CRC32 crc = new CRC32();
+	private final boolean fWriteEofBlock;
+	private int nBufferedByteCount = 0;
+	private boolean fClosed = false;
+
+	public BgzfOutputStream(OutputStream out, boolean fWriteEofBlock) {
+		super(out);
+		this.fWriteEofBlock = fWriteEofBlock;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (nBufferedByteCount == uncompressedBuffer.length)
+			writeBlock();
+		uncompressedBuffer[nBufferedByteCount++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (nBufferedByteCount == uncompressedBuffer.length)
+				writeBlock();
+			int nCopied = Math.min(len, uncompressedBuffer.length - nBufferedByteCount);
+			System.arraycopy(b, off, uncompressedBuffer, nBufferedByteCount, nCopied);
+			nBufferedByteCount += nCopied;
+			off += nCopied;
+			len -= nCopied;
+		}
+	}
+
+	private void writeBlock() throws IOException {
+		if (nBufferedByteCount == 0)
+			return;
+
+		deflater.reset();
+		deflater.setInput(uncompressedBuffer, 0, nBufferedByteCount);
+		deflater.finish();
+		int nCompressedSize = 0, nMaxCompressedSize = blockBuffer.length - BLOCK_HEADER_SIZE - BLOCK_FOOTER_SIZE;
+		while (!deflater.finished() && nCompressedSize < nMaxCompressedSize)
+			nCompressedSize += deflater.deflate(blockBuffer, BLOCK_HEADER_SIZE + nCompressedSize, nMaxCompressedSize - nCompressedSize);
+		if (!deflater.finished())
+			throw new IOException("Unable to fit compressed data into a BGZF block");
+
+		crc.reset();
+		crc.update(uncompressedBuffer, 0, nBufferedByteCount);
+		int nBlockSize = BLOCK_HEADER_SIZE + nCompressedSize + BLOCK_FOOTER_SIZE;
+
+		blockBuffer[0] = 0x1f;
+		blockBuffer[1] = (byte) 0x8b;
+		blockBuffer[2] = 0x08;	// deflate
+		blockBuffer[3] = 0x04;	// FEXTRA
+		blockBuffer[4] = blockBuffer[5] = blockBuffer[6] = blockBuffer[7] = 0;	// MTIME
+		blockBuffer[8] = 0;	// XFL
+		blockBuffer[9] = (byte) 0xff;	// OS: unknown
+		writeShort(10, 6);	// XLEN
+		blockBuffer[12] = 'B';
+		blockBuffer[13] = 'C';
+		writeShort(14, 2);
+		writeShort(16, nBlockSize - 1);
+		writeInt(BLOCK_HEADER_SIZE + nCompressedSize, (int) crc.getValue());
+		writeInt(BLOCK_HEADER_SIZE + nCompressedSize + 4, nBufferedByteCount);
+
+		out.write(blockBuffer, 0, nBlockSize);
+		nBufferedByteCount = 0;
+	}
+
+	private void writeShort(int nOffset, int value) {
+		blockBuffer[nOffset] = (byte) value;
+		blockBuffer[nOffset + 1] = (byte) (value >> 8);
+	}
+
+	private void writeInt(int nOffset, int value) {
+		writeShort(nOffset, value);
+		writeShort(nOffset + 2, value >> 16);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (fClosed)
+			return;
+		fClosed = true;
+		try {
+			writeBlock();
+			if (fWriteEofBlock)
+				out.write(EOF_BLOCK);
+		} finally {
+			deflater.end();
+			out.close();
+		}
+	}
+}
@@ -18,12 +18,19 @@
 package fr.cirad.web.controller.rest;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.math.BigInteger;
 import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -32,13 +39,14 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.regex.Pattern;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.ejb.ObjectNotFoundException;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
@@ -48,20 +56,22 @@ import fr.cirad.mgdb.model.mongo.maintypes.*;
 import org.apache.commons.collections.map.UnmodifiableMap;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
-import org.apache.commons.text.CaseUtils;
 import org.brapi.v2.model.GermplasmNewRequest;
 import org.bson.Document;
 import org.bson.types.ObjectId;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.TypeAlias;
-import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Field;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.http.HttpStatus;
 import org.springframework.security.authentication.AuthenticationManager;
 import org.springframework.security.authentication.BadCredentialsException;
 import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
@@ -79,15 +89,14 @@ import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.view.json.MappingJackson2JsonView;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
-import com.mongodb.client.FindIterable;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.MongoCursor;
 
 import fr.cirad.io.brapi.BrapiService;
-import fr.cirad.mgdb.exporting.IExportHandler;
 import fr.cirad.mgdb.model.mongo.subtypes.Callset;
 import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
 import fr.cirad.mgdb.model.mongo.subtypes.SampleGenotype;
-import fr.cirad.mgdb.model.mongo.subtypes.VariantRunDataId;
 import fr.cirad.mgdb.model.mongodao.MgdbDao;
 import fr.cirad.tools.AppConfig;
 import fr.cirad.tools.Helper;
@@ -109,7 +118,7 @@ import jhi.brapi.api.germplasm.BrapiGermplasm;
  */
 //@Api(tags = {"BrAPI"}, description = "BrAPI compliant methods")
 @RestController
-public class BrapiRestController implements ServletContextAware {
+public class BrapiRestController implements ServletContextAware, DisposableBean, ApplicationListener<ContextRefreshedEvent> {
 
 	/**
 	 * logger
@@ -125,6 +134,20 @@ public class BrapiRestController implements ServletContextAware {
 
 	static final int MAX_SUPPORTED_MARKER_LIST_SIZE = 200000;
 
+	/**
+	 * Default values for alleleMatrix export scheduling, may be overridden via config.properties
+	 */
+	static final private int DEFAULT_EXPORT_WORKER_COUNT = 2;
+	static final private int DEFAULT_MAX_EXPORTS_PER_DATABASE = 10;
+	static final private int DEFAULT_MAX_EXPORTS_PER_USER = 3;
+	static final private int EXPORT_KEY_LENGTH = 32;	// hex digits of an MD5 hash
+	static final private int DEFAULT_EXPORT_PARALLELISM = 1;	// number of segments written concurrently by each export (brapiExportParallelism_<database> overrides brapiExportParallelism)
+
+	private AlleleMatrixExportScheduler exportScheduler;
+	private ExportFileJanitor exportFileJanitor;
+	private byte[] exportFileSecret;
+	private boolean fExportResumptionLaunched = false;
+
     @Autowired
     private AbstractTokenManager tokenManager;
 
@@ -159,13 +182,17 @@ public class BrapiRestController implements ServletContextAware {
 	static public final String URL_MAPS = "maps";
 	static public final String URL_MARKERS_SEARCH = "markers-search";
 	static public final String URL_MARKER_DETAILS = "markers/{markerDbId}";
+	static public final String URL_MARKERS_DETAILS = "markers-details";
 	static public final String URL_MAP_DETAILS = URL_MAPS + "/{mapDbId}";
 	static public final String URL_MAP_POSITIONS = URL_MAPS + "/{mapDbId}/positions";
+	static public final String URL_MAP_DENSITY = URL_MAPS + "/{mapDbId}/density";
 	static public final String URL_STUDY_GERMPLASMS = "studies/{studyDbId}/germplasm";
 	static public final String URL_STUDIES = "studies-search";
 	static public final String URL_MARKER_PROFILES = "markerprofiles";
 	static public final String URL_ALLELE_MATRIX = "allelematrix-search";
 	static public final String URL_ALLELE_MATRIX_STATUS = "allelematrix-search/status";
+	static public final String URL_ALLELE_MATRIX_DOWNLOAD = "allelematrix-search/download";
+	static public final String URL_ALLELE_MATRIX_METRICS = "allelematrix-search/metrics";
 	static public final String URL_GERMPLASM_DETAILS = "germplasm/{germplasmDbId}";
 	static public final String URL_GERMPLASM_SEARCH = "germplasm-search";
 	static public final String URL_GERMPLASM_ATTRIBUTES = "germplasm/{germplasmDbId}/attributes";
@@ -176,7 +203,23 @@ public class BrapiRestController implements ServletContextAware {
 	static public final String URL_MARKERS_SEARCH_V1_0 = "markers";
 
 	static private final TreeSet<CallMap> implementedCalls = new TreeSet<>();
-	protected HashMap<String /* module */, HashMap<Integer /* marker index when sorted by id */, Comparable /* marker id */>> markerIndexByModuleMap = new HashMap<>();
+	static final private int MARKER_PAGE_BOUNDARY_CACHE_SIZE = 100000;
+	static final private int KEYSET_WALK_BATCH_SIZE = 100000;	// number of _ids findIdAtIndex fetches per query when walking to a page boundary
+	static final private long MARKER_PAGE_BOUNDARY_TTL_MILLIS = 1000 * 60 * 10;
+	protected final KeysetCursorCache markerPageBoundaryCache = new KeysetCursorCache(MARKER_PAGE_BOUNDARY_CACHE_SIZE, MARKER_PAGE_BOUNDARY_TTL_MILLIS);	// _id of the marker at a given index when sorted by _id
+	static final private int RESULT_COUNT_CACHE_SIZE = 10000;
+	static final private int RESULT_COUNT_THREAD_COUNT = 8;
+	static final private int DEFAULT_QUERY_DEADLINE_MILLIS = 30000;	// may be overridden via config.properties (brapiQueryDeadlineMillis_<call> overrides brapiQueryDeadlineMillis)
+	protected final ResultCountCache resultCountCache = new ResultCountCache(RESULT_COUNT_CACHE_SIZE, RESULT_COUNT_THREAD_COUNT);
+	protected final KeysetCursorCache germplasmPageBoundaryCache = new KeysetCursorCache(MARKER_PAGE_BOUNDARY_CACHE_SIZE, MARKER_PAGE_BOUNDARY_TTL_MILLIS);	// same for individuals
+	static final private int MARKER_DETAILS_CACHE_SIZE = 50000;	// per database
+	static final private int MAX_MARKER_DETAILS_BATCH_SIZE = 10000;
+	protected final MarkerDetailsCache markerDetailsCache = new MarkerDetailsCache(MARKER_DETAILS_CACHE_SIZE);
+	static final private int MARKER_NAME_MATCH_CACHE_SIZE = 100;	// per database
+	protected final MarkerNameMatchCache markerNameMatchCache = new MarkerNameMatchCache(MARKER_NAME_MATCH_CACHE_SIZE);
+	static final private long GERMPLASM_SEARCH_RESULT_STORE_SIZE = 10000000;	// total number of individual IDs kept in memory
+	static final private int GERMPLASM_SEARCH_THREAD_COUNT = 4;
+	protected final GermplasmSearchResultStore germplasmSearchResultStore = new GermplasmSearchResultStore(GERMPLASM_SEARCH_RESULT_STORE_SIZE, 1000 * GermplasmSearchRequest.TTL_SECONDS, GERMPLASM_SEARCH_THREAD_COUNT);
 
 	static public final List<String> extRefList = new ArrayList<>();
 
@@ -267,6 +310,20 @@ public class BrapiRestController implements ServletContextAware {
 		call = new CallMap();
 		call.put("call", URL_ALLELE_MATRIX_STATUS);
 		call.put("dataTypes", Arrays.asList(new String[] { "application/json" }));
+		call.put("methods", new String[] { "GET", "DELETE" });
+		call.put("versions", new String[] { "1.1" });
+		implementedCalls.add(call);
+
+		call = new CallMap();
+		call.put("call", URL_ALLELE_MATRIX_DOWNLOAD);
+		call.put("dataTypes", Arrays.asList(Arrays.stream(ExportOutputFormat.values()).map(f -> f.getContentType()).distinct().toArray(String[]::new)));
+		call.put("methods", new String[] { "GET", "HEAD" });
+		call.put("versions", new String[] { "1.1" });
+		implementedCalls.add(call);
+
+		call = new CallMap();
+		call.put("call", URL_ALLELE_MATRIX_METRICS);
+		call.put("dataTypes", Arrays.asList(new String[] { "application/json" }));
 		call.put("methods", new String[] { "GET" });
 		call.put("versions", new String[] { "1.1" });
 		implementedCalls.add(call);
@@ -285,6 +342,13 @@ public class BrapiRestController implements ServletContextAware {
 		call.put("versions", new String[] { "1.1", "1.3" });
 		implementedCalls.add(call);
 
+		call = new CallMap();
+		call.put("call", URL_MAP_DENSITY);
+		call.put("dataTypes", Arrays.asList(new String[] { "application/json" }));
+		call.put("methods", new String[] { "GET" });
+		call.put("versions", new String[] { "1.1", "1.3" });
+		implementedCalls.add(call);
+
 		call = new CallMap();
 		call.put("call", URL_MARKERS_SEARCH);
 		call.put("dataTypes", Arrays.asList(new String[] { "application/json" }));
@@ -299,6 +363,13 @@ public class BrapiRestController implements ServletContextAware {
 		call.put("versions", new String[] { "1.1" });
 		implementedCalls.add(call);
 
+		call = new CallMap();
+		call.put("call", URL_MARKERS_DETAILS);
+		call.put("dataTypes", Arrays.asList(new String[] { "application/json" }));
+		call.put("methods", new String[] { "POST", "GET" });
+		call.put("versions", new String[] { "1.1" });
+		implementedCalls.add(call);
+
 		call = new CallMap();
 		call.put("call", URL_STUDY_GERMPLASMS);
 		call.put("dataTypes", Arrays.asList(new String[] { "application/json" }));
@@ -371,8 +442,14 @@ public class BrapiRestController implements ServletContextAware {
 	 */
 	@ExceptionHandler(Exception.class)
 	public ModelAndView handleAllExceptions(HttpServletRequest request, HttpServletResponse response, Exception ex) {
-		response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 		HashMap<String, String> map = new HashMap<String, String>();
+		if (ex instanceof MongoExecutionTimeoutException) {	// query deadline exceeded
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			map.put("errorMsg", "Query took too long, you may want to narrow it down or browse pages using pageToken");
+			LOG.info("Query deadline exceeded at URL " + request.getRequestURI());
+			return new ModelAndView(new MappingJackson2JsonView(), UnmodifiableMap.decorate(map));
+		}
+		response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
 		boolean fLooksLikeMaxPostSizeIssue = ex instanceof MissingServletRequestParameterException
 				&& "Required Collection parameter 'markerprofileDbId' is not present".equals(ex.getMessage());
 		if (fLooksLikeMaxPostSizeIssue) {
@@ -414,18 +491,19 @@ public class BrapiRestController implements ServletContextAware {
 			return null;
 		}
 
+		DatabaseMetadataSnapshot metadata = DatabaseMetadataSnapshot.get(database);
 		Map<String, Object> resultObject = new LinkedHashMap<String, Object>();
 		resultObject.put("version", "1.1, 1.3");
 		resultObject.put("provider", "Gigwa - Genotype Investigator for Genome-Wide Analyses");
-		String taxon = MongoTemplateManager.getTaxonName(database);
-		String species = MongoTemplateManager.getSpecies(database);
+		String taxon = metadata.getTaxonName();
+		String species = metadata.getSpecies();
 		String taxoDesc = (species != null ? "Species: " + species : "")
 				+ (taxon != null && !taxon.equals(species) ? (species != null ? " ; " : "") + "Taxon: " + taxon : "");
 		resultObject.put("description",
 				"Database: " + database + " ; " + (!taxoDesc.isEmpty() ? taxoDesc + " ; " : "")
-						+ Helper.estimDocCount(mongoTemplate, Individual.class) + " germplasm ; "
-						+ Helper.estimDocCount(mongoTemplate, GenotypingSample.class) + " samples ; "
-						+ Helper.estimDocCount(mongoTemplate, VariantData.class) + " markers");
+						+ metadata.getIndividualCount() + " germplasm ; "
+						+ metadata.getSampleCount() + " samples ; "
+						+ metadata.getMarkerCount() + " markers");
 		resultObject.put("contact", "gigwa@cirad.fr");
 		return resultObject;
 	}
@@ -464,27 +542,24 @@ public class BrapiRestController implements ServletContextAware {
 			@PathVariable String database, @RequestParam(required = false, name = "species") String speciesId,
 			@RequestParam(required = false) Integer pageSize, @RequestParam(required = false) Integer page)
 			throws IOException {
-		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+		DatabaseMetadataSnapshot metadata = DatabaseMetadataSnapshot.get(database);
+		if (metadata == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
 
 		ArrayList<Map<String, Object>> data = new ArrayList<>();
-		List<Assembly> assemblies = mongoTemplate.findAll(Assembly.class);
-		Integer nAssemblyId = assemblies.size() == 0 ? null : assemblies.get(0).getId();
-		if (speciesId == null || speciesId.equals(MongoTemplateManager.getTaxonName(database)))
+		if (speciesId == null || speciesId.equals(metadata.getTaxonName()))
 			try {
 				if (tokenManager.canUserReadDB(tokenManager.readToken(request), database)) {
 					Map<String, Object> map = new HashMap<>();
 					map.put("mapDbId", database);
-					map.put("species", MongoTemplateManager.getSpecies(database));
+					map.put("species", metadata.getSpecies());
 					map.put("name", database + " map");
 					map.put("type", "Physical");
 					map.put("unit", "Mb");
-					map.put("markerCount", Helper.estimDocCount(mongoTemplate, VariantData.class));
-					HashSet<String> distinctSequences = new HashSet<>();
-					Iterator<GenotypingProject> projectIt = mongoTemplate.find(new Query(), GenotypingProject.class).iterator();
-					while (projectIt.hasNext()) {
-						distinctSequences.addAll(projectIt.next().getContigs(nAssemblyId));
-					}
-					map.put("linkageGroupCount", distinctSequences.size());
+					map.put("markerCount", metadata.getMarkerCount());
+					map.put("linkageGroupCount", metadata.getContigs().size());
 					data.add(map);
 				}
 			} catch (ObjectNotFoundException e) {
@@ -502,7 +577,6 @@ public class BrapiRestController implements ServletContextAware {
 			@PathVariable String database, @PathVariable("mapDbId") String mapDbId,
 			@RequestParam(required = false) Integer pageSize, @RequestParam(required = false) Integer page)
 			throws IOException {
-		MongoTemplate mongoTemplate = MongoTemplateManager.get(mapDbId);
 //		LOG.debug("mapDetails called");
 
 		if (!database.equals(mapDbId)) {
@@ -510,9 +584,11 @@ public class BrapiRestController implements ServletContextAware {
 			return null;
 		}
 
-		List<Assembly> assemblies = mongoTemplate.findAll(Assembly.class);
-		Integer nAssemblyId = assemblies.size() == 0 ? null : assemblies.get(0).getId();
-		String refPosPathWithTrailingDot = Assembly.getVariantRefPosPath(nAssemblyId) + ".";
+		MapSummary mapSummary = MapSummary.get(mapDbId);
+		if (mapSummary == null) {
+			build404Response(response);
+			return null;
+		}
 		Map<String, Object> resultObject = getStandardResponse(0, 0, 0, 0, false);
 		Map<String, Object> map = new HashMap<>();
 		try {
@@ -523,27 +599,11 @@ public class BrapiRestController implements ServletContextAware {
 				map.put("unit", "Mb");
 
 				List<HashMap<String, Comparable>> linkageGroups = new ArrayList<>();
-				HashSet<String> distinctSequences = new HashSet<>();
-				Iterator<GenotypingProject> projectIt = mongoTemplate.find(new Query(), GenotypingProject.class).iterator();
-				while (projectIt.hasNext()) {
-					distinctSequences.addAll(projectIt.next().getContigs(nAssemblyId));
-				}
-				List<Document> pipeline = new ArrayList<Document>();
-				pipeline.add(new Document("$match", new Document(refPosPathWithTrailingDot + ReferencePosition.FIELDNAME_SEQUENCE, new Document("$in", distinctSequences))));
-				Document groupObject = new Document("_id", "$" + refPosPathWithTrailingDot + ReferencePosition.FIELDNAME_SEQUENCE);
-				groupObject.put("count", new Document("$sum", 1));
-				pipeline.add(new Document("$group", groupObject));
-				MongoCursor<Document> it = mongoTemplate.getCollection(MongoTemplateManager.getMongoCollectionName(VariantData.class)).aggregate(pipeline).iterator();
-				while (it.hasNext()) {
-					Document obj = (Document) it.next();
+				for (MapSummary.LinkageGroupStats stats : mapSummary.getLinkageGroups()) {	// computed in a single aggregation, once per data version
 					HashMap<String, Comparable> linkageGroup = new HashMap<>();
-					linkageGroup.put("linkageGroupName", obj.getString("_id"));
-					linkageGroup.put("markerCount", obj.getInteger("count"));
-					Query query = new Query(Criteria.where(refPosPathWithTrailingDot + ReferencePosition.FIELDNAME_SEQUENCE).is(obj.getString("_id")));
-					query.with(Sort.by(Sort.Direction.DESC, refPosPathWithTrailingDot + ReferencePosition.FIELDNAME_START_SITE)).limit(1);
-					query.fields().include(refPosPathWithTrailingDot + ReferencePosition.FIELDNAME_START_SITE);
-					VariantData variant = mongoTemplate.findOne(query, VariantData.class);
-					linkageGroup.put("maxPosition", variant.getDefaultReferencePosition().getStartSite());
+					linkageGroup.put("linkageGroupName", stats.getName());
+					linkageGroup.put("markerCount", stats.getMarkerCount());
+					linkageGroup.put("maxPosition", stats.getMaxPosition());
 					linkageGroups.add(linkageGroup);
 				}
 				if (!linkageGroups.isEmpty()) {
@@ -562,12 +622,20 @@ public class BrapiRestController implements ServletContextAware {
 	public Map<String, Object> mapMarkerPositions(HttpServletRequest request, HttpServletResponse response,
 			@PathVariable final String database, @PathVariable String mapDbId,
 			@RequestParam(required = false, name = "linkageGroupName") Collection<String> linkageGroupNames,
+			@RequestParam(required = false) Long minPosition, @RequestParam(required = false) Long maxPosition,
 			@RequestParam(required = false) Integer pageSize, @RequestParam(required = false) Integer page)
 			throws IOException {
-		MongoTemplate mongoTemplate = MongoTemplateManager.get(mapDbId);
+		if (!database.equals(mapDbId)) {	// the map is the database itself, which keys all caches below
+			build404Response(response);
+			return null;
+		}
+
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
 		long before = System.currentTimeMillis();
 		ArrayList<Map<String, Object>> data = new ArrayList<>();
 		long nCount = 0;
+		ResultCountCache.Count resultCount = null;
+		long deadline = before + getQueryDeadlineMillis("mapMarkerPositions");
 
 		// hack for remaining compatible with v1.0
 		if (linkageGroupNames == null) {
@@ -583,12 +651,37 @@ public class BrapiRestController implements ServletContextAware {
 		if (page == null) {
 			page = 0;
 		}
+		if (page < 0 || pageSize < 0) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return null;
+		}
 
-		List<Assembly> assemblies = mongoTemplate.findAll(Assembly.class);
-		Integer nAssemblyId = assemblies.size() == 0 ? null : assemblies.get(0).getId();
-		String refPosPathWithTrailingDot = Assembly.getVariantRefPosPath(nAssemblyId) + ".";
+		DatabaseMetadataSnapshot metadata = DatabaseMetadataSnapshot.get(database);
+		if (metadata == null) {
+			build404Response(response);
+			return null;
+		}
+		String refPosPathWithTrailingDot = metadata.getRefPosPath() + ".";
 		try {
-			if (tokenManager.canUserReadDB(tokenManager.readToken(request), database)) {
+			if (tokenManager.canUserReadDB(tokenManager.readToken(request), database) && (minPosition != null || maxPosition != null)) {
+				// region query: served from the in-memory position index, sorted by linkage group then position
+				MarkerPositionIndex positionIndex = MarkerPositionIndex.get(database);
+				if (positionIndex == null) {
+					build404Response(response);
+					return null;
+				}
+				MarkerPositionIndex.Region region = positionIndex.getRegion(linkageGroupNames, minPosition, maxPosition);
+				nCount = region.size();
+				int nPageStart = (int) Math.min(region.size(), (long) page * pageSize), nPageEnd = (int) Math.min(region.size(), ((long) page + 1) * pageSize);
+				for (int i = nPageStart; i < nPageEnd; i++) {
+					Map<String, Object> variant = new HashMap<>();
+					variant.put("markerDbId", region.get(i));
+					variant.put("markerName", region.get(i));
+					variant.put("linkageGroupName", region.getLinkageGroupName(i));
+					variant.put("location", region.getPosition(i));
+					data.add(variant);
+				}
+			} else if (tokenManager.canUserReadDB(tokenManager.readToken(request), database)) {
 				List<Criteria> crit = new ArrayList<>();
 				if (linkageGroupNames != null) {
 					crit.add(Criteria.where(refPosPathWithTrailingDot + ReferencePosition.FIELDNAME_SEQUENCE).in(linkageGroupNames));
@@ -600,30 +693,22 @@ public class BrapiRestController implements ServletContextAware {
 				projectObject.put(refPosPathWithTrailingDot + ReferencePosition.FIELDNAME_SEQUENCE, 1);
 				projectObject.put(refPosPathWithTrailingDot + ReferencePosition.FIELDNAME_START_SITE, 1);
 
-				HashMap<Integer, Comparable> markerIndexMap = markerIndexByModuleMap.get(database);
-				if (markerIndexMap == null) {
-					markerIndexMap = new HashMap<Integer, Comparable>();
-					markerIndexByModuleMap.put(database, markerIndexMap);
-				}
-
-				nCount = mongoTemplate.count(crit.size() == 0 ? new Query() : new Query(new Criteria().andOperator(crit.toArray(new Criteria[crit.size()]))), VariantData.class);
+				String filterKey = getFilterKey(crit);
+				Future<ResultCountCache.Count> countFuture = resultCountCache.countAsync(database, mongoTemplate, VariantData.class, crit, filterKey, deadline);	// runs while we fetch the page
 
-				// hack to avoid using skip which slows down the query
-				Comparable<Integer> previousMarker = page == 0 ? null : markerIndexMap.get(page * pageSize - 1);
+				// keyset pagination: start after the last marker of the previous page rather than using skip, which slows down the query
+				Comparable previousMarker = null;
+				boolean fBeyondLastPage = false;
+				if (page > 0) {
+					previousMarker = findIdAtIndex(markerPageBoundaryCache, database, mongoTemplate, VariantData.class, crit, filterKey, page * pageSize - 1, pageSize, deadline - System.currentTimeMillis());
+					fBeyondLastPage = previousMarker == null;
+				}
 				if (previousMarker != null) {
 					crit.add(Criteria.where("_id").gt(previousMarker));
 				}
 
-				FindIterable<Document> iterable = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find(crit.size() == 0 ? new Document() : new Query(new Criteria().andOperator(crit.toArray(new Criteria[crit.size()]))).getQueryObject()).projection(projectObject).sort(new Document("_id", 1));
-				if (pageSize != null) {
-					iterable.limit(pageSize);
-					if (page != null && previousMarker == null) {
-						iterable.skip(page * pageSize);
-					}
-				}
-
-				MongoCursor<Document> dbCursor = iterable.iterator();
-				while (dbCursor.hasNext()) {
+				MongoCursor<Document> dbCursor = fBeyondLastPage ? null : mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find(crit.size() == 0 ? new Document() : new Query(new Criteria().andOperator(crit.toArray(new Criteria[crit.size()]))).getQueryObject()).projection(projectObject).sort(new Document("_id", 1)).limit(pageSize).maxTime(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS).iterator();
+				while (dbCursor != null && dbCursor.hasNext()) {
 					marker = dbCursor.next();
 					Map<String, Object> variant = new HashMap<>();
 					variant.put("markerDbId", marker.get("_id").toString());
@@ -632,32 +717,169 @@ public class BrapiRestController implements ServletContextAware {
 					variant.put("location", Helper.readPossiblyNestedField(marker, refPosPathWithTrailingDot + ReferencePosition.FIELDNAME_START_SITE, "; ", null));
 					data.add(variant);
 				}
-				if (marker != null) {
-					if (previousMarker != null) {
-						markerIndexByModuleMap.get(database).remove(page * pageSize - 1); // we shouldn't need that one
-																							// again
-					}
-					final int newIndex = page * pageSize + data.size() - 1;
-					markerIndexMap.put(newIndex, (Comparable<Integer>) marker.get("_id"));
-					new Timer().schedule(new TimerTask() { // we only keep it for a minute
-						@Override
-						public void run() {
-							markerIndexByModuleMap.get(database).remove(newIndex);
-						}
-					}, 60000);
+				if (marker != null && data.size() == pageSize) {
+					markerPageBoundaryCache.put(database, filterKey, (page + 1) * pageSize - 1, (Comparable) marker.get("_id"));
 				}
+				resultCount = ResultCountCache.await(countFuture, deadline, page * pageSize + data.size() + (data.size() == pageSize ? 1 : 0));
+				nCount = resultCount.getValue();
 			}
 		} catch (ObjectNotFoundException e) {
 			build404Response(response);
 		}
 		Map<String, Object> resultObject = getStandardResponse(data.size(), page, nCount, pageSize, true);
 		((Map<String, Object>) resultObject.get("result")).put("data", data);
+		addCountStatus(resultObject, resultCount);
 		LOG.debug("mapMarkerPositions took " + (System.currentTimeMillis() - before) / 1000d + "s for " + data.size()
 				+ " markers");
 
 		return resultObject;
 	}
 
+	/**
+	 * Returns marker counts per fixed-size bin for each linkage group, served from a precomputed histogram so that
+	 * clients drawing density tracks need not page through all marker positions.
+	 */
+	@ApiOperation(authorizations = { @Authorization(value = "AuthorizationToken") }, value = "mapMarkerDensity")
+	@RequestMapping(value = "/{database:.+}" + URL_BASE_PREFIX + "/" + URL_MAP_DENSITY, method = RequestMethod.GET, produces = "application/json")
+	public Map<String, Object> mapMarkerDensity(HttpServletRequest request, HttpServletResponse response,
+			@PathVariable final String database, @PathVariable String mapDbId,
+			@RequestParam(required = false, name = "linkageGroupName") Collection<String> linkageGroupNames,
+			@RequestParam(required = false) String type,
+			@RequestParam(required = false, defaultValue = "1000000") Integer binSize)
+			throws IOException {
+		if (!database.equals(mapDbId)) {
+			build404Response(response);
+			return null;
+		}
+
+		ArrayList<Map<String, Object>> data = new ArrayList<>();
+		try {
+			if (tokenManager.canUserReadDB(tokenManager.readToken(request), database)) {
+				MapSummary mapSummary = MapSummary.get(mapDbId);
+				MarkerDensityIndex densityIndex = MarkerDensityIndex.get(mapDbId);
+				if (mapSummary == null || densityIndex == null) {
+					build404Response(response);
+					return null;
+				}
+
+				int nBinSize = MarkerDensityIndex.normalizeBinSize(binSize);
+				String markerType = type == null || type.trim().isEmpty() ? null : type.trim();
+				for (MapSummary.LinkageGroupStats stats : mapSummary.getLinkageGroups()) {
+					if (linkageGroupNames != null && !linkageGroupNames.contains(stats.getName()))
+						continue;
+
+					int[] counts = densityIndex.getCounts(stats.getName(), markerType, nBinSize);
+					if (counts == null)
+						continue;
+
+					Map<String, Object> linkageGroup = new HashMap<>();
+					linkageGroup.put("linkageGroupName", stats.getName());
+					linkageGroup.put("binSize", nBinSize);
+					linkageGroup.put("markerCount", Arrays.stream(counts).asLongStream().sum());
+					linkageGroup.put("counts", counts);
+					data.add(linkageGroup);
+				}
+			}
+		} catch (ObjectNotFoundException e) {
+			build404Response(response);
+		}
+		Map<String, Object> resultObject = getStandardResponse(data.size(), 0, data.size(), 0, true);
+		((Map<String, Object>) resultObject.get("result")).put("data", data);
+		return resultObject;
+	}
+
+	/**
+	 * Finds the _id of the document at a given index among those matching the passed criteria (sorted by _id), without using skip.
+	 * Cache misses are resolved via the MarkerIdIndex when listing all markers, and otherwise by walking _ids from the
+	 * nearest cached boundary in batches of KEYSET_WALK_BATCH_SIZE, caching the boundaries of pages met along the way as
+	 * well as the end of each batch, so that a walk interrupted by the deadline is resumed from there by the next attempt.
+	 *
+	 * @param maxTimeMillis time after which MongoDB should abort the walk (a MongoExecutionTimeoutException is then thrown)
+	 * @return the document _id, or null if there are not that many matching documents
+	 */
+	private Comparable findIdAtIndex(KeysetCursorCache boundaryCache, String database, MongoTemplate mongoTemplate, Class<?> entityClass, List<Criteria> crit, String filterKey, int nIndex, int pageSize, long maxTimeMillis) {
+		Comparable id = boundaryCache.get(database, filterKey, nIndex);
+		if (id != null)
+			return id;
+
+		if (crit.isEmpty() && VariantData.class.equals(entityClass)) {
+			MarkerIdIndex markerIdIndex = MarkerIdIndex.get(database);
+			return nIndex < markerIdIndex.size() ? markerIdIndex.get(nIndex) : null;
+		}
+
+		Map.Entry<Integer, Comparable> startBoundary = boundaryCache.floor(database, filterKey, nIndex);
+		if (startBoundary != null && startBoundary.getKey() == nIndex)
+			return startBoundary.getValue();
+		int nCurrentIndex = startBoundary == null ? -1 : startBoundary.getKey();
+		id = startBoundary == null ? null : startBoundary.getValue();
+		long deadline = System.currentTimeMillis() + maxTimeMillis;
+		while (nCurrentIndex < nIndex) {
+			List<Criteria> batchCrit = new ArrayList<>(crit);
+			if (id != null)
+				batchCrit.add(Criteria.where("_id").gt(id));
+			Document batchQuery = batchCrit.isEmpty() ? new Document() : new Query(new Criteria().andOperator(batchCrit.toArray(new Criteria[batchCrit.size()]))).getQueryObject();
+			int nBatchEndIndex = nCurrentIndex + Math.min(KEYSET_WALK_BATCH_SIZE, nIndex - nCurrentIndex);
+			try (MongoCursor<Document> idCursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(entityClass)).find(batchQuery).projection(new Document("_id", 1)).sort(new Document("_id", 1)).limit(nBatchEndIndex - nCurrentIndex).maxTime(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS).iterator()) {
+				while (idCursor.hasNext()) {
+					id = (Comparable) idCursor.next().get("_id");
+					if (++nCurrentIndex % pageSize == pageSize - 1)
+						boundaryCache.put(database, filterKey, nCurrentIndex, id);
+				}
+			}
+			if (nCurrentIndex < nBatchEndIndex)
+				return null;	// not that many matching documents
+			if (nCurrentIndex < nIndex)
+				boundaryCache.put(database, filterKey, nCurrentIndex, id);	// where the next batch (or attempt) will start from
+		}
+		return id;
+	}
+
+	/**
+	 * @return a hash identifying the passed criteria, used for keying page boundaries and validating page tokens
+	 */
+	static private String getFilterKey(List<Criteria> crit) {
+		return Helper.convertToMD5(crit.isEmpty() ? "{}" : new Query(new Criteria().andOperator(crit.toArray(new Criteria[crit.size()]))).getQueryObject().toJson());
+	}
+
+	static private void addStatus(Map<String, Object> resultObject, String code, String message) {
+		Status status = new Status();
+		status.setCode(code);
+		status.setMessage(message);
+		Metadata metadata = (Metadata) resultObject.get("metadata");
+		List<Status> statusList = metadata.getStatus() == null ? new ArrayList<>() : new ArrayList<>(metadata.getStatus());
+		statusList.add(status);
+		metadata.setStatus(statusList);
+	}
+
+	/**
+	 * Runs an aggregation pipeline on the given entity's collection
+	 *
+	 * @param maxTimeMillis time after which MongoDB should abort the query, or 0 for no limit
+	 */
+	static private List<Document> aggregate(MongoTemplate mongoTemplate, Class<?> entityClass, List<Document> pipeline, long maxTimeMillis) {
+		AggregateIterable<Document> aggregation = mongoTemplate.getCollection(mongoTemplate.getCollectionName(entityClass)).aggregate(pipeline).allowDiskUse(true);
+		if (maxTimeMillis != 0)
+			aggregation.maxTime(Math.max(1, maxTimeMillis), TimeUnit.MILLISECONDS);
+		return aggregation.into(new ArrayList<>());
+	}
+
+	/**
+	 * Flags the response's totalCount as estimated (e.g. taken from collection metadata) and / or as a mere lower bound, when the count missed its deadline
+	 */
+	static private void addCountStatus(Map<String, Object> resultObject, ResultCountCache.Count resultCount) {
+		if (resultCount != null && resultCount.isEstimated())
+			addStatus(resultObject, "countestimated", "true");
+		if (resultCount != null && resultCount.isTimedOut())
+			addStatus(resultObject, "counttimedout", "true");
+	}
+
+	/**
+	 * Adds a nextPageToken status to the passed response, pointing to the page following the one ending with lastId
+	 */
+	static private void addNextPageToken(Map<String, Object> resultObject, String filterKey, int nNextIndex, String lastId) {
+		addStatus(resultObject, "nextPageToken", new ContinuationToken(filterKey, nNextIndex, lastId).encode());
+	}
+
 	@ApiOperation(authorizations = { @Authorization(value = "AuthorizationToken") }, value = "studySummaryList")
 	@RequestMapping(value = { "/{database:.+}" + URL_BASE_PREFIX + "/" + URL_STUDIES, "/{database:.+}" + URL_BASE_PREFIX
 			+ "/" + URL_STUDIES_V1_3 }, method = RequestMethod.GET, produces = "application/json")
@@ -734,10 +956,11 @@ public class BrapiRestController implements ServletContextAware {
 	@TypeAlias("BGS")
 	static public class GermplasmSearchRequest {
 		static private final String FIELDNAME_CREATION_DATE = "cd";
+		static private final int TTL_SECONDS = 60 * 5;
 		@Id
 		private ObjectId _id;
 		@Field(value = FIELDNAME_CREATION_DATE)
-		@Indexed(expireAfterSeconds = 60 * 5)
+		@Indexed(expireAfterSeconds = TTL_SECONDS)
 		public Date createdAt = new Date();
 		public Collection<String> germplasmPUIs;
 		public Collection<String> germplasmDbIds;
@@ -747,6 +970,7 @@ public class BrapiRestController implements ServletContextAware {
 		public Collection<String> accessionNumbers;
 		public Integer pageSize;
 		public Integer page;
+		public String pageToken;
 	}
 
 	@ApiOperation(authorizations = { @Authorization(value = "AuthorizationToken") }, value = "germplasmAttributes")
@@ -775,14 +999,7 @@ public class BrapiRestController implements ServletContextAware {
 			return null;
 		}
 
-        ArrayList<Map<String, Object>> data = new ArrayList<>();
-        for (String attributeDbId : ind.getAdditionalInfo().keySet()) {
-        	if (!germplasmLevelFields.contains(attributeDbId) && !BrapiService.BRAPI_FIELD_extGermplasmDbId.equals(attributeDbId))
-	            data.add(new HashMap<String, Object>() {{
-                    put("attributeDbId", attributeDbId);
-                    put("value", ind.getAdditionalInfo().get(attributeDbId));
-                }});
-        }
+        List<Map<String, Object>> data = GermplasmFieldMapping.get(database, BrapiGermplasm.germplasmFields, germplasmLevelFields).toAttributes(ind);
 
 		result.put("data", data);
 		result.put(BrapiService.BRAPI_FIELD_germplasmDbId, germplasmDbId);
@@ -812,6 +1029,7 @@ public class BrapiRestController implements ServletContextAware {
 		}
 
 		mongoTemplate.insert(requestBody);
+		germplasmSearchResultStore.submit(requestBody._id.toString(), database, mongoTemplate, getGermplasmSearchCriteria(database, requestBody));
 
 		Map<String, Object> resultObject = getStandardResponse(0, 0, 0, 0, false);
 		resultObject.put("result", new HashMap<String, Object>() {
@@ -832,13 +1050,29 @@ public class BrapiRestController implements ServletContextAware {
 			@PathVariable String database, @PathVariable("searchResultsDbId") String searchResultsDbId)
 			throws ObjectNotFoundException, IOException {
 		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+		if (mongoTemplate == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
+
+		if (!tokenManager.canUserReadDB(tokenManager.readToken(request), database)) {
+			response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			return null;
+		}
+
 		GermplasmSearchRequest requestBody = mongoTemplate.findById(searchResultsDbId, GermplasmSearchRequest.class);
 		if (requestBody == null) { // it either expired or never existed
 			build404Response(response);
 			return null;
 		}
 
-		return executeGermplasmSearch(request, response, database, requestBody, BrapiGermplasm.germplasmFields);
+		List<Criteria> crits = getGermplasmSearchCriteria(database, requestBody);
+		if (crits != null) {
+			List<String> ids = germplasmSearchResultStore.get(searchResultsDbId, database, System.currentTimeMillis() + getQueryDeadlineMillis("getGermplasmSearchResults"));
+			if (ids != null)
+				return getGermplasmSearchResultPage(request, response, database, requestBody, crits, ids, BrapiGermplasm.germplasmFields);
+		}
+		return executeGermplasmSearch(request, response, database, requestBody, BrapiGermplasm.germplasmFields);	// results expired, were evicted or could not be resolved in time
 	}
 
 	@ApiOperation(authorizations = { @Authorization(value = "AuthorizationToken") }, value = "germplasmSearchGetV1_3")
@@ -847,8 +1081,8 @@ public class BrapiRestController implements ServletContextAware {
 	public Map<String, Object> germplasmSearchGetV1_3(HttpServletRequest request, HttpServletResponse response,
 			@PathVariable String database, @RequestParam(required = false) String germplasmDbId,
 			@RequestParam(required = false) String germplasmName, @RequestParam(required = false) Integer pageSize,
-			@RequestParam(required = false) Integer page) throws Exception {
-		return germplasmSearch(request, response, database, null, germplasmDbId, germplasmName, pageSize, page);
+			@RequestParam(required = false) Integer page, @RequestParam(required = false) String pageToken) throws Exception {
+		return germplasmSearch(request, response, database, null, germplasmDbId, germplasmName, pageSize, page, pageToken);
 	}
 
 	@ApiOperation(authorizations = { @Authorization(value = "AuthorizationToken") }, value = "germplasmSearch")
@@ -857,7 +1091,8 @@ public class BrapiRestController implements ServletContextAware {
 	public Map<String, Object> germplasmSearch(HttpServletRequest request, HttpServletResponse response,
 			@PathVariable String database, @RequestParam(required = false) String germplasmPUI,
 			@RequestParam(required = false) String germplasmDbId, @RequestParam(required = false) String germplasmName,
-			@RequestParam(required = false) Integer pageSize, @RequestParam(required = false) Integer page)
+			@RequestParam(required = false) Integer pageSize, @RequestParam(required = false) Integer page,
+			@RequestParam(required = false) String pageToken)
 			throws ObjectNotFoundException, IOException {
 		GermplasmSearchRequest requestBody = new GermplasmSearchRequest();
 		if (germplasmPUI != null) {
@@ -871,6 +1106,7 @@ public class BrapiRestController implements ServletContextAware {
 		}
 		requestBody.pageSize = pageSize;
 		requestBody.page = page;
+		requestBody.pageToken = pageToken;
 
 		return executeGermplasmSearch(request, response, database, requestBody, BrapiGermplasm.germplasmFields);
 	}
@@ -880,65 +1116,192 @@ public class BrapiRestController implements ServletContextAware {
 	public Map<String, Object> executeGermplasmSearch(HttpServletRequest request, HttpServletResponse response,
 			String database, GermplasmSearchRequest requestBody, Map<String, String> brapiFields)
 			throws ObjectNotFoundException, IOException {
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+		if (mongoTemplate == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
+
+		if (!tokenManager.canUserReadDB(tokenManager.readToken(request), database)) {
+			response.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
+			return null;
+		}
+
+		List<Criteria> crits = getGermplasmSearchCriteria(database, requestBody);
+		if (crits == null)
+			return getStandardResponse(0, 0, 0, 0, false);
+
+		ArrayList<Map<String, Object>> data = new ArrayList<>();
+		String filterKey = getFilterKey(crits);
+		long deadline = System.currentTimeMillis() + getQueryDeadlineMillis("germplasmSearch");
+		ResultCountCache.Count resultCount = crits.isEmpty() ? ResultCountCache.await(resultCountCache.countAsync(database, mongoTemplate, Individual.class, crits, filterKey, 0), deadline, 0) /* estimated from collection metadata */ : resultCountCache.getCached(database, Individual.class, filterKey);
+
+		// keyset pagination, as in markers
+		int nFirstIndex = 0;
+		Comparable previousIndividual = null;
+		boolean fBeyondLastPage = false;
+		if (requestBody.pageSize != null) {
+			if (requestBody.pageToken != null) {
+				try {
+					ContinuationToken token = ContinuationToken.decode(requestBody.pageToken, filterKey);
+					previousIndividual = token.getLastId();
+					nFirstIndex = token.getNextIndex();
+				} catch (IllegalArgumentException iae) {
+					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+					return null;
+				}
+			} else if (requestBody.page != null && requestBody.page > 0) {
+				nFirstIndex = requestBody.page * requestBody.pageSize;
+				previousIndividual = findIdAtIndex(germplasmPageBoundaryCache, database, mongoTemplate, Individual.class, crits, filterKey, nFirstIndex - 1, requestBody.pageSize, deadline - System.currentTimeMillis());
+				fBeyondLastPage = previousIndividual == null;
+			}
+		}
+
+		// a single aggregation returns the page's individuals, along with the total count when it is not known yet
+		List<Document> pipeline = new ArrayList<>();
+		if (!crits.isEmpty())
+			pipeline.add(new Document("$match", new Query(new Criteria().andOperator(crits.toArray(new Criteria[crits.size()]))).getQueryObject()));
+		pipeline.add(new Document("$sort", new Document("_id", 1)));
+		List<Document> pageStages = new ArrayList<>();
+		if (previousIndividual != null)
+			pageStages.add(new Document("$match", new Document("_id", new Document("$gt", previousIndividual))));
+		if (requestBody.pageSize != null)
+			pageStages.add(new Document("$limit", requestBody.pageSize));
+
+		List<Document> pageResults = new ArrayList<>();
+		boolean fCountTimedOut = false;
+		if (!fBeyondLastPage) {
+			pageResults = null;
+			if (resultCount == null && requestBody.pageSize != null) {
+				List<Document> facetPipeline = new ArrayList<>(pipeline);
+				Document facets = new Document("page", pageStages);
+				facets.put("total", Arrays.asList(new Document("$count", "count")));
+				facetPipeline.add(new Document("$facet", facets));
+				try {
+					Document facetResult = aggregate(mongoTemplate, Individual.class, facetPipeline, deadline - System.currentTimeMillis()).get(0);
+					pageResults = (List<Document>) facetResult.get("page");
+					List<Document> total = (List<Document>) facetResult.get("total");
+					resultCount = resultCountCache.put(database, Individual.class, filterKey, total.isEmpty() ? 0 : ((Number) total.get(0).get("count")).longValue());
+				} catch (MongoExecutionTimeoutException mete) {
+					fCountTimedOut = true;	// fetch the page alone
+				}
+			}
+			if (pageResults == null) {
+				List<Document> pagePipeline = new ArrayList<>(pipeline);
+				pagePipeline.addAll(pageStages);
+				pageResults = aggregate(mongoTemplate, Individual.class, pagePipeline, fCountTimedOut ? 0 : deadline - System.currentTimeMillis());
+			}
+		}
+		List<String> indIDsForCurrentPage = pageResults.stream().map(doc -> doc.get("_id").toString()).collect(Collectors.toList());
+		if (resultCount == null) {
+			if (requestBody.pageSize == null)	// everything was returned
+				resultCount = resultCountCache.put(database, Individual.class, filterKey, indIDsForCurrentPage.size());
+			else if (fCountTimedOut)
+				resultCount = ResultCountCache.timedOut(nFirstIndex + indIDsForCurrentPage.size() + (indIDsForCurrentPage.size() == requestBody.pageSize ? 1 : 0));
+			else	// beyond last page
+				resultCount = ResultCountCache.await(resultCountCache.countAsync(database, mongoTemplate, Individual.class, crits, filterKey, deadline), deadline, nFirstIndex);
+		}
+		long count = resultCount.getValue();
+		data.addAll(getGermplasm(request, database, mongoTemplate, pageResults, brapiFields));
+
+		Map<String, Object> resultObject = getStandardResponse(
+				(int) (requestBody.pageSize == null ? count : Math.min(requestBody.pageSize, count)),
+				requestBody.pageSize == null ? 0 : nFirstIndex / requestBody.pageSize,
+				count, requestBody.pageSize, true);
+		((Map<String, Object>) resultObject.get("result")).put("data", data);
+		if (requestBody.pageSize != null && indIDsForCurrentPage.size() == requestBody.pageSize) {
+			String lastId = indIDsForCurrentPage.get(indIDsForCurrentPage.size() - 1);
+			germplasmPageBoundaryCache.put(database, filterKey, nFirstIndex + requestBody.pageSize - 1, lastId);
+			addNextPageToken(resultObject, filterKey, nFirstIndex + requestBody.pageSize, lastId);
+		}
+		addCountStatus(resultObject, resultCount);
+		return resultObject;
+	}
+
+	/**
+	 * @return null if the search cannot match anything, otherwise the criteria to apply to the Individual collection
+	 */
+	private List<Criteria> getGermplasmSearchCriteria(String database, GermplasmSearchRequest requestBody) {
 		if (requestBody.germplasmPUIs != null || requestBody.germplasmGenus != null
 				|| requestBody.accessionNumbers != null) {
-			return getStandardResponse(0, 0, 0, 0, false); // those parameters are not supported at the moment
+			return null; // those parameters are not supported at the moment
 		}
-		String dbSpecies = MongoTemplateManager.getSpecies(database);
+		String dbSpecies = DatabaseMetadataSnapshot.get(database).getSpecies();
 		if (requestBody.germplasmSpecies != null && dbSpecies != null) {
 			List<String> lcTrimmedTaxonList = requestBody.germplasmSpecies.stream().map(sp -> sp.toLowerCase().trim())
 					.collect(Collectors.toList());
 			if (!lcTrimmedTaxonList.contains(dbSpecies.toLowerCase().trim())) {
-				return getStandardResponse(0, 0, 0, 0, false);
+				return null;
 			}
 		}
 
-		ArrayList<Map<String, Object>> data = new ArrayList<>();
 		TreeSet<String> indIDs = new TreeSet<String>(
 				requestBody.germplasmDbIds == null ? new ArrayList<>() : requestBody.germplasmDbIds);
 		if (requestBody.germplasmNames != null) {
 			indIDs.addAll(requestBody.germplasmNames);
 		}
+		return indIDs.size() > 0 ? Arrays.asList(Criteria.where("_id").in(indIDs)) : new ArrayList<>();
+	}
 
-		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
-		Query q = indIDs.size() > 0 ? new Query(Criteria.where("_id").in(indIDs)) : new Query();
-		q.fields().include("_id");
-		long count = mongoTemplate.count(q, Individual.class);
-
-		if (requestBody.pageSize != null) {
-			q.limit(requestBody.pageSize);
-			if (requestBody.page != null) {
-				q.skip(requestBody.page * requestBody.pageSize);
-			}
-		}
-		List<String> indIDsForCurrentPage = mongoTemplate.find(q, Individual.class).stream().map(ind -> ind.getId())
-				.collect(Collectors.toList());
-
+	/**
+	 * Converts Individual documents into BrAPI germplasm records, merging custom metadata where the current user has some
+	 */
+	private List<Map<String, Object>> getGermplasm(HttpServletRequest request, String database, MongoTemplate mongoTemplate, List<Document> individualDocs, Map<String, String> brapiFields) {
         Authentication auth = tokenManager.getAuthenticationFromToken(tokenManager.readToken(request));
         String sCurrentUser = auth == null || "anonymousUser".equals(auth.getName()) ? "anonymousUser" : auth.getName();
-        for (Individual ind : MgdbDao.getInstance().loadIndividualsForUser(database, sCurrentUser, null, indIDsForCurrentPage, null).values()) {
-            Map<String, Object> germplasm = new TreeMap<>();
-            germplasm.put(BrapiService.BRAPI_FIELD_germplasmDbId, ind.getId());
-            germplasm.put("germplasmName", ind.getId());
 
-            if (ind.getAdditionalInfo() != null) {
-                for (String key : ind.getAdditionalInfo().keySet()) {
-                    String lcKey = CaseUtils.toCamelCase(key, false, '_', '-', '.').toLowerCase();
-                    if (brapiFields.containsKey(lcKey))
-                        germplasm.put(brapiFields.get(lcKey), ind.getAdditionalInfo().get(key));
-//                    if (extRefList.contains(key))	// externalReferences is not part of the V1 model so we will only return this info as germplasm attributes
-//                        germplasm.put(key, ind.getAdditionalInfo().get(key));
-                }
-            }
+        // individuals the user has custom metadata for are reloaded with it, others are served as they come from the Individual collection
+        Set<String> customizedIndividualIDs = individualDocs.isEmpty() ? new HashSet<>() : CustomIndividualMetadataIndex.getCustomizedIndividuals(database, sCurrentUser);
+        List<String> customizedIDs = individualDocs.stream().map(doc -> doc.get("_id").toString()).filter(customizedIndividualIDs::contains).collect(Collectors.toList());
+        Map<String, Individual> customizedIndividuals = customizedIDs.isEmpty() ? new HashMap<>() : MgdbDao.getInstance().loadIndividualsForUser(database, sCurrentUser, null, customizedIDs, null);
 
-			data.add(germplasm);
+        GermplasmFieldMapping fieldMapping = GermplasmFieldMapping.get(database, brapiFields, germplasmLevelFields);
+        List<Map<String, Object>> germplasm = new ArrayList<>();
+        for (Document doc : individualDocs) {
+            Individual customizedIndividual = customizedIndividuals.get(doc.get("_id").toString());
+            germplasm.add(fieldMapping.toGermplasm(customizedIndividual != null ? customizedIndividual : mongoTemplate.getConverter().read(Individual.class, doc)));
+        }
+        return germplasm;
+	}
+
+	/**
+	 * Serves a page of germplasm search results from the IDs resolved when the search was submitted
+	 *
+	 * @param ids sorted IDs of all matching individuals
+	 */
+	private Map<String, Object> getGermplasmSearchResultPage(HttpServletRequest request, HttpServletResponse response, String database, GermplasmSearchRequest requestBody, List<Criteria> crits, List<String> ids, Map<String, String> brapiFields) {
+		String filterKey = getFilterKey(crits);	// so that tokens remain interchangeable with those issued when re-running the search
+		int nFirstIndex = 0;
+		if (requestBody.pageSize != null) {
+			if (requestBody.pageToken != null) {
+				try {
+					int nLastIdIndex = Collections.binarySearch(ids, ContinuationToken.decode(requestBody.pageToken, filterKey).getLastId());
+					nFirstIndex = nLastIdIndex >= 0 ? nLastIdIndex + 1 : -nLastIdIndex - 1;
+				} catch (IllegalArgumentException iae) {
+					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+					return null;
+				}
+			} else if (requestBody.page != null && requestBody.page > 0)
+				nFirstIndex = (int) Math.min(ids.size(), (long) requestBody.page * requestBody.pageSize);
 		}
+		List<String> indIDsForCurrentPage = ids.subList(nFirstIndex, requestBody.pageSize == null ? ids.size() : (int) Math.min(ids.size(), (long) nFirstIndex + requestBody.pageSize));
 
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+		Map<String, Document> individualDocsById = new HashMap<>();
+		if (!indIDsForCurrentPage.isEmpty())
+			for (Document doc : mongoTemplate.getCollection(mongoTemplate.getCollectionName(Individual.class)).find(new Document("_id", new Document("$in", indIDsForCurrentPage))))
+				individualDocsById.put(doc.get("_id").toString(), doc);
+		List<Document> individualDocs = indIDsForCurrentPage.stream().map(individualDocsById::get).filter(doc -> doc != null).collect(Collectors.toList());	// individuals removed in the meantime are skipped
+
+		ArrayList<Map<String, Object>> data = new ArrayList<>(getGermplasm(request, database, mongoTemplate, individualDocs, brapiFields));
+		long count = ids.size();
 		Map<String, Object> resultObject = getStandardResponse(
 				(int) (requestBody.pageSize == null ? count : Math.min(requestBody.pageSize, count)),
-				requestBody.pageSize == null || requestBody.page == null || requestBody.page < 1 ? 0 : requestBody.page,
+				requestBody.pageSize == null ? 0 : nFirstIndex / requestBody.pageSize,
 				count, requestBody.pageSize, true);
 		((Map<String, Object>) resultObject.get("result")).put("data", data);
+		if (requestBody.pageSize != null && indIDsForCurrentPage.size() == requestBody.pageSize)
+			addNextPageToken(resultObject, filterKey, nFirstIndex + requestBody.pageSize, indIDsForCurrentPage.get(indIDsForCurrentPage.size() - 1));
 		return resultObject;
 	}
 
@@ -948,7 +1311,10 @@ public class BrapiRestController implements ServletContextAware {
         Map<String, Object> resultObject = getStandardResponse(0, 0, 0, 0, false);
 
 		Map<String, Object> resultList = germplasmSearch(request, response, database, null, germplasmDbId, null,
-				pageSize, page);
+				pageSize, page, null);
+		if (resultList == null)	// status already set
+			return null;
+
 		HashMap<String, Object> result = (HashMap<String, Object>) resultList.get("result");
 		ArrayList<Map<String, Object>> data = (ArrayList<Map<String, Object>>) result.get("data");
 		if (data == null || data.size() == 0) {
@@ -1026,7 +1392,8 @@ public class BrapiRestController implements ServletContextAware {
 			@PathVariable String database, @RequestParam(required = false) Collection<String> markerDbIds,
 			@RequestParam(required = false) Collection<String> name, @RequestParam(required = false) String matchMethod,
 			@RequestParam(required = false) String include, @RequestParam(required = false) String type,
-			@RequestParam(required = false) Integer pageSize, @RequestParam(required = false) Integer page)
+			@RequestParam(required = false) Integer pageSize, @RequestParam(required = false) Integer page,
+			@RequestParam(required = false) String pageToken)
 			throws ObjectNotFoundException, Exception {
 //    	LOG.debug("markers called");
 		long before = System.currentTimeMillis();
@@ -1040,39 +1407,46 @@ public class BrapiRestController implements ServletContextAware {
 		Map<String, Object> result = new HashMap<>();
 		ArrayList<HashMap<String, Object>> data = new ArrayList<>();
 		long count = 0;
+		ResultCountCache.Count resultCount = null;
+		long deadline = before + getQueryDeadlineMillis("markers");
+		int nFirstIndex = 0;
+		String filterKey = null, lastId = null;
+		List<String> matchingIDs = null;	// when filtering on names, the matching IDs are resolved in memory and paged through by slicing
 		if (tokenManager.canUserReadDB(tokenManager.readToken(request), database)) {
 			List<Criteria> crits = new ArrayList<Criteria>();
 			boolean fIDsPassed = markerDbIds != null && markerDbIds.size() > 0;
 			if (fIDsPassed) {
 				name = markerDbIds; // IDs have priority over names
 			}
+			String trimmedType = type == null || type.trim().isEmpty() ? null : type.trim();
 			if (name != null && name.size() > 0) {
-				if (fIDsPassed || "exact".equals(matchMethod)) {
+				if (fIDsPassed) {
 					crits.add(Criteria.where("_id").in(name));
-				} else if ("case_insensitive".equals(matchMethod)) {
-					crits.add(Criteria.where("_id").in(name.stream().map(idString -> Pattern.compile(idString, Pattern.CASE_INSENSITIVE)).collect(Collectors.toList())));
-				} else if ("wildcard".equals(matchMethod)) {
-					crits.add(Criteria.where("_id").in(name.stream().map(idString -> Pattern.compile("^" + idString.replaceAll("\\*", ".*").replaceAll("%", ".*").replaceAll("\\?", ".") + "$")).collect(Collectors.toList())));
+				} else if ("exact".equals(matchMethod) || "case_insensitive".equals(matchMethod) || "wildcard".equals(matchMethod)) {
+					matchingIDs = markerNameMatchCache.get(database, mongoTemplate, name, matchMethod, trimmedType, deadline - System.currentTimeMillis());	// names may be IDs or synonyms
 				} else // if (matchMethod != null && !"exact".equals(matchMethod))
 				{
 					throw new Exception(matchMethod + " matchMethod not supported");
 				}
 			}
 
-			if (type != null && type.trim().length() > 0) {
-				crits.add(Criteria.where(VariantData.FIELDNAME_TYPE).is(type.trim()));
+			if (matchingIDs == null && trimmedType != null) {
+				crits.add(Criteria.where(VariantData.FIELDNAME_TYPE).is(trimmedType));
 			}
 
 			if (pageSize == null || pageSize > MAX_SUPPORTED_MARKER_LIST_SIZE) {
 				pageSize = MAX_SUPPORTED_MARKER_LIST_SIZE;
 			}
 
-			Query q = crits.size() == 0 ? new Query() : new Query(new Criteria().andOperator(crits.toArray(new Criteria[crits.size()])));
-			count = mongoTemplate.count(q, VariantData.class);
+			Future<ResultCountCache.Count> countFuture = null;
+			if (matchingIDs == null) {
+				filterKey = getFilterKey(crits);
+				countFuture = resultCountCache.countAsync(database, mongoTemplate, VariantData.class, crits, filterKey, deadline);	// runs while we fetch the page
+			}
+			else
+				filterKey = Helper.convertToMD5(MarkerNameMatchCache.getFilterKey(name, matchMethod, trimmedType));
 
-			List<Assembly> assemblies = mongoTemplate.findAll(Assembly.class);
-			Integer nAssemblyId = assemblies.size() == 0 ? null : assemblies.get(0).getId();
-			String refPosPath = Assembly.getVariantRefPosPath(nAssemblyId);
+			String refPosPath = DatabaseMetadataSnapshot.get(database).getRefPosPath();
 			
 			Document projectObject = new Document(VariantData.FIELDNAME_KNOWN_ALLELES, 1);
 			projectObject.put(VariantData.FIELDNAME_TYPE, 1);
@@ -1081,21 +1455,51 @@ public class BrapiRestController implements ServletContextAware {
 				projectObject.put(VariantData.FIELDNAME_SYNONYMS, 1);
 			}
 
-			FindIterable<Document> iterable = mongoTemplate
-					.getCollection(mongoTemplate.getCollectionName(VariantData.class))
-					.find(q == null ? new Document() : q.getQueryObject()).projection(projectObject);
-			if (pageSize != null) {
-				iterable.limit(pageSize);
-				if (page != null) {
-					iterable.skip(page * pageSize);
+			// keyset pagination: page numbers are translated into an _id range whenever the previous page's last _id can be found without skip
+			Comparable previousMarker = null;
+			boolean fBeyondLastPage = false;
+			if (pageToken != null) {
+				try {
+					ContinuationToken token = ContinuationToken.decode(pageToken, filterKey);
+					previousMarker = token.getLastId();
+					nFirstIndex = token.getNextIndex();
+				} catch (IllegalArgumentException iae) {
+					response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+					return null;
+				}
+			} else if (page != null && page > 0) {
+				nFirstIndex = (int) Math.min(Integer.MAX_VALUE, (long) page * pageSize);
+				if (matchingIDs == null) {
+					previousMarker = findIdAtIndex(markerPageBoundaryCache, database, mongoTemplate, VariantData.class, crits, filterKey, nFirstIndex - 1, pageSize, deadline - System.currentTimeMillis());
+					fBeyondLastPage = previousMarker == null;
 				}
 			}
+			List<Criteria> pageCrits = new ArrayList<>(crits);
+			if (matchingIDs != null) {
+				if (previousMarker != null && (nFirstIndex <= 0 || nFirstIndex > matchingIDs.size() || !matchingIDs.get(nFirstIndex - 1).equals(previousMarker))) {
+					int nLastIdIndex = Collections.binarySearch(matchingIDs, (String) previousMarker);	// token issued before data was modified
+					nFirstIndex = nLastIdIndex >= 0 ? nLastIdIndex + 1 : -nLastIdIndex - 1;
+				}
+				nFirstIndex = Math.min(Math.max(0, nFirstIndex), matchingIDs.size());
+				List<String> pageIDs = matchingIDs.subList(nFirstIndex, (int) Math.min(matchingIDs.size(), (long) nFirstIndex + pageSize));
+				fBeyondLastPage = pageIDs.isEmpty();
+				pageCrits.add(Criteria.where("_id").in(new ArrayList<>(pageIDs)));	// fetched via the _id index
+				if (!pageIDs.isEmpty())
+					lastId = pageIDs.get(pageIDs.size() - 1);
+			}
+			else if (previousMarker != null)
+				pageCrits.add(Criteria.where("_id").gt(previousMarker));
 
-			MongoCursor<Document> dbCursor = iterable.iterator();
-			while (dbCursor.hasNext()) {
+			MongoCursor<Document> dbCursor = fBeyondLastPage ? null : mongoTemplate
+					.getCollection(mongoTemplate.getCollectionName(VariantData.class))
+					.find(pageCrits.isEmpty() ? new Document() : new Query(new Criteria().andOperator(pageCrits.toArray(new Criteria[pageCrits.size()]))).getQueryObject())
+					.projection(projectObject).sort(new Document("_id", 1)).limit(pageSize).maxTime(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS).iterator();
+			while (dbCursor != null && dbCursor.hasNext()) {
 				Document dbVariant = dbCursor.next();
 				HashMap<String, Object> variantDTO = new HashMap<>();
 				String dbId = (String) dbVariant.get("_id");
+				if (matchingIDs == null)
+					lastId = dbId;
 				variantDTO.put("markerDbId", dbId.toString());
 				String markerType = (String) dbVariant.get(VariantData.FIELDNAME_TYPE);
 				if (markerType != null) {
@@ -1117,13 +1521,25 @@ public class BrapiRestController implements ServletContextAware {
 				}
 				data.add(variantDTO);
 			}
+			if (matchingIDs != null)
+				count = matchingIDs.size();
+			else {
+				resultCount = ResultCountCache.await(countFuture, deadline, nFirstIndex + data.size() + (data.size() == pageSize ? 1 : 0));
+				count = resultCount.getValue();
+			}
 		}
 
 		Map<String, Object> resultObject = getStandardResponse(
 				(int) (pageSize == null ? count : Math.min(pageSize, count)),
-				pageSize == null || page == null || page < 1 ? 0 : page, count, pageSize, true);
+				pageSize == null ? 0 : nFirstIndex / pageSize, count, pageSize, true);
 		result.put("data", data);
 		resultObject.put("result", result);
+		if (matchingIDs != null ? nFirstIndex + pageSize < count : lastId != null && data.size() == pageSize) {
+			if (matchingIDs == null)
+				markerPageBoundaryCache.put(database, filterKey, nFirstIndex + pageSize - 1, lastId);
+			addNextPageToken(resultObject, filterKey, nFirstIndex + pageSize, lastId);
+		}
+		addCountStatus(resultObject, resultCount);
 
 		LOG.debug(
 				"markers took " + (System.currentTimeMillis() - before) / 1000d + "s for " + data.size() + " markers");
@@ -1141,32 +1557,54 @@ public class BrapiRestController implements ServletContextAware {
 
 		Map<String, Object> resultObject = getStandardResponse(0, 0, 0, 0, false);
 		if (tokenManager.canUserReadDB(tokenManager.readToken(request), database)) {
-			VariantData variant = mongoTemplate.findById(markerDbId, VariantData.class);
-			if (variant == null) {
+			List<Map<String, Object>> variantDTOs = markerDetailsCache.get(database, mongoTemplate, Arrays.asList(markerDbId));
+			if (variantDTOs.isEmpty()) {
 				build404Response(response);
 			} else {
-				HashMap<String, Object> variantDTO = new HashMap<>();
-				variantDTO.put("markerDbId", markerDbId);
-				variantDTO.put("type", variant.getType());
-				variantDTO.put("refAlt", variant.getKnownAlleles());
-				String defaultDisplayName = MgdbDao.idLooksGenerated(markerDbId) ? null : markerDbId; // we don't invent names for ObjectIDs since we would not able to apply a filter on them
-				variantDTO.put("defaultDisplayName", defaultDisplayName);
-				variantDTO.put("analysisMethods", null);
-				HashSet<String> synonymsObject = new HashSet<String>();
-				if (variant.getSynonyms() != null) {
-					for (String synType : variant.getSynonyms().keySet()) {
-						for (String synForType : (Collection<String>) variant.getSynonyms().get(synType)) {
-							synonymsObject.add(synForType.toString());
-						}
-					}
-				}
-				variantDTO.put("synonyms", synonymsObject);
-				resultObject.put("result", variantDTO);
+				resultObject.put("result", variantDTOs.get(0));
 			}
 		}
 		return resultObject;
 	}
 
+	static public class MarkerDetailsRequest {
+		public List<String> markerDbIds;
+	}
+
+	@ApiOperation(authorizations = { @Authorization(value = "AuthorizationToken") }, value = "markersDetails")
+	@RequestMapping(value = "/{database:.+}" + URL_BASE_PREFIX + "/" + URL_MARKERS_DETAILS, method = {RequestMethod.POST }, consumes = "application/json", produces = "application/json")
+	public Map<String, Object> markersDetails(HttpServletRequest request, HttpServletResponse response, @PathVariable String database, @RequestBody MarkerDetailsRequest requestBody) throws ObjectNotFoundException, Exception {
+		return markersDetails(request, response, database, requestBody.markerDbIds);
+	}
+
+	/**
+	 * Returns details for a batch of markers (those that do not exist being skipped), in the order they were requested
+	 */
+	@ApiOperation(authorizations = { @Authorization(value = "AuthorizationToken") }, value = "markersDetails")
+	@RequestMapping(value = "/{database:.+}" + URL_BASE_PREFIX + "/" + URL_MARKERS_DETAILS, method = {RequestMethod.GET }, produces = "application/json")
+	public Map<String, Object> markersDetails(HttpServletRequest request, HttpServletResponse response, @PathVariable String database, @RequestParam(name = "markerDbId") List<String> markerDbIds) throws ObjectNotFoundException, Exception {
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+		if (mongoTemplate == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
+
+		if (markerDbIds == null || markerDbIds.isEmpty() || markerDbIds.size() > MAX_MARKER_DETAILS_BATCH_SIZE) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return null;
+		}
+
+		long before = System.currentTimeMillis();
+		List<Map<String, Object>> data = new ArrayList<>();
+		if (tokenManager.canUserReadDB(tokenManager.readToken(request), database))
+			data = markerDetailsCache.get(database, mongoTemplate, markerDbIds);
+
+		Map<String, Object> resultObject = getStandardResponse(data.size(), 0, data.size(), data.size(), true);
+		((Map<String, Object>) resultObject.get("result")).put("data", data);
+		LOG.debug("markersDetails took " + (System.currentTimeMillis() - before) / 1000d + "s for " + data.size() + " markers (cache hits: " + markerDetailsCache.getHitCount() + ", misses: " + markerDetailsCache.getMissCount() + ")");
+		return resultObject;
+	}
+
 	static public class MarkerSearchRequest {
 		public Collection<String> markerDbIds;
 		public Collection<String> name;
@@ -1175,6 +1613,7 @@ public class BrapiRestController implements ServletContextAware {
 		public String type;
 		public Integer pageSize;
 		public Integer page;
+		public String pageToken;
 	}
 
 	@ApiOperation(authorizations = { @Authorization(value = "AuthorizationToken") }, value = "markerDetails")
@@ -1184,39 +1623,166 @@ public class BrapiRestController implements ServletContextAware {
 			@PathVariable String database, @RequestBody MarkerSearchRequest requestBody)
 			throws ObjectNotFoundException, Exception {
 		return markers(request, response, database, requestBody.markerDbIds, requestBody.name, requestBody.matchMethod,
-				requestBody.include, requestBody.type, requestBody.pageSize, requestBody.page);
+				requestBody.include, requestBody.type, requestBody.pageSize, requestBody.page, requestBody.pageToken);
+	}
+
+	static private List<Callset> getCallsets(MongoTemplate mongoTemplate, Collection<Integer> markerprofileDbIDs) {
+		return mongoTemplate.find(new Query(Criteria.where(GenotypingSample.FIELDNAME_CALLSETS + "._id").in(markerprofileDbIDs)), GenotypingSample.class).stream().map(sp -> sp.getCallSets()).flatMap(Collection::stream).toList();
 	}
 
 	/**
-	 * Cleanup old export data.
+	 * Queues an alleleMatrix export described by the passed record
 	 *
-	 * @param request the request
-	 * @throws Exception
+	 * @return the scheduled job, which is an identical existing one if any
+	 */
+	private AlleleMatrixExportScheduler.ExportJob submitExport(MongoTemplate mongoTemplate, String database, ExportJobRecord record, List<Callset> callsets, List<String> markerIDs) throws RejectedExecutionException {
+		File outputFile = new File(getExportOutputFolder(), getExportFileBaseName(record.exportKey) + record.format.getFileExtension());
+		ProgressIndicator progress = new ProgressIndicator(record.extractId, new String[] { "Generating export file" });
+		int nParallelism = getIntConfigValue("brapiExportParallelism_" + database, getIntConfigValue("brapiExportParallelism", DEFAULT_EXPORT_PARALLELISM));
+		AlleleMatrixExportTask exportTask = new AlleleMatrixExportTask(mongoTemplate, callsets, record.markerprofileDbIds, markerIDs, record.unknownString, record.sepUnphased, record.sepPhased, record.expandHomozygotes, outputFile, record.format, progress, nParallelism, getExportScheduler().getSegmentExecutor(), record, getExportFileJanitor());
+		return getExportScheduler().submit(record.extractId, record.exportKey, database, record.ownerKey, progress, exportTask);
+	}
+
+	/**
+	 * Re-queues exports that were queued or running when the application was last stopped
 	 */
-	private void cleanupOldExportData(HttpServletRequest request) throws Exception {
-		if (request.getSession() == null) {
-			throw new Exception("Invalid request object");
-		}
-
-		long nowMillis = new Date().getTime();
-		File filterOutputLocation = new File(servletContext.getRealPath(File.separator + TMP_OUTPUT_FOLDER));
-		if (filterOutputLocation.exists() && filterOutputLocation.isDirectory()) {
-			for (File f : filterOutputLocation.listFiles()) {
-				if (!f.isDirectory() && nowMillis - f.lastModified() > EXPORT_FILE_EXPIRATION_DELAY_MILLIS) {
-					if (!f.delete()) {
-						LOG.warn("Unable to delete " + f.getPath());
-					} else {
-						LOG.info("BrAPI export file was deleted: " + f.getPath());
+	private void resumeInterruptedExports() {
+		for (String database : MongoTemplateManager.getAvailableModules()) {
+			MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+			if (mongoTemplate == null)
+				continue;
+
+			try {
+				List<ExportJobRecord> records = mongoTemplate.find(new Query(Criteria.where(ExportJobRecord.FIELDNAME_STATE).in(ExportJobRecord.State.QUEUED.name(), ExportJobRecord.State.RUNNING.name())), ExportJobRecord.class);
+				records.sort((r1, r2) -> Integer.compare(r2.completedChunkCount, r1.completedChunkCount));	// requesters of identical exports then attach to the one holding the checkpoint
+				for (ExportJobRecord record : records) {
+					if (record.versionStamp == null || !record.versionStamp.equals(DatabaseVersionTracker.getVersionStamp(database))) {
+						LOG.info("Not resuming alleleMatrix export " + record.extractId + " because data was modified in " + database);
+						record.setState(ExportJobRecord.State.FAILED);
+						mongoTemplate.save(record);
+						continue;
 					}
+					try {
+						submitExport(mongoTemplate, database, record, getCallsets(mongoTemplate, record.markerprofileDbIds), getMarkerList(database, record.markerDbIds, record.linkageGroupNames, record.minPosition, record.maxPosition, true));
+						LOG.info("Resumed alleleMatrix export " + record.extractId + " in " + database);
+					} catch (RejectedExecutionException ree) {
+						LOG.warn("Unable to resume alleleMatrix export " + record.extractId + ": " + ree.getMessage());
+						record.setState(ExportJobRecord.State.FAILED);
+						mongoTemplate.save(record);
+					}
+				}
+			} catch (Exception e) {
+				LOG.error("Error resuming alleleMatrix exports for " + database, e);
+			}
+		}
+	}
+
+	private File getExportOutputFolder() {
+		return new File(servletContext.getRealPath(File.separator + TMP_OUTPUT_FOLDER + File.separator));
+	}
+
+	/**
+	 * Computes a key identifying the contents of an export, so that identical requests may share the same output file.
+	 * The marker list is taken into account as is, since its order determines the output's.
+	 */
+	static private String computeExportKey(String database, Collection<Integer> sortedMarkerprofileDbIDs, List<String> markerDbIDs, Collection<String> linkageGroupNames, Long minPosition, Long maxPosition, String unknownGtCode, String unPhasedSeparator, String phasedSeparator, Boolean expandHomozygotes, ExportOutputFormat outputFormat) throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		for (Object keyPart : Arrays.asList(database, DatabaseVersionTracker.getVersionStamp(database), outputFormat, unknownGtCode, unPhasedSeparator, phasedSeparator, Boolean.TRUE.equals(expandHomozygotes), StringUtils.join(sortedMarkerprofileDbIDs, ",")))
+			md.update((keyPart + "\n").getBytes(StandardCharsets.UTF_8));
+		if (markerDbIDs == null && isRegionQuery(linkageGroupNames, minPosition, maxPosition))
+			md.update(("@" + (linkageGroupNames == null ? "*" : StringUtils.join(new TreeSet<>(linkageGroupNames), ",")) + ":" + minPosition + "-" + maxPosition).getBytes(StandardCharsets.UTF_8));
+		else if (markerDbIDs == null)
+			md.update((byte) '*');	// all markers
+		else
+			for (String markerId : markerDbIDs)
+				md.update((markerId + "\n").getBytes(StandardCharsets.UTF_8));
+		return String.format("%0" + EXPORT_KEY_LENGTH + "x", new BigInteger(1, md.digest()));
+	}
+
+	static private boolean isRegionQuery(Collection<String> linkageGroupNames, Long minPosition, Long maxPosition) {
+		return linkageGroupNames != null || minPosition != null || maxPosition != null;
+	}
+
+	/**
+	 * @param fUpToDate whether the list must reflect the database's current version stamp (e.g. for exports identified by it), rather than possibly lag behind while indexes are being rebuilt
+	 * @return the markers to include in an alleleMatrix: either the explicitly listed ones, or those located in the given region (sorted by linkage group then position), or all markers (sorted by _id)
+	 */
+	static private List<String> getMarkerList(String database, List<String> markerDbIDs, Collection<String> linkageGroupNames, Long minPosition, Long maxPosition, boolean fUpToDate) {
+		if (markerDbIDs != null)
+			return markerDbIDs;
+		if (isRegionQuery(linkageGroupNames, minPosition, maxPosition))
+			return (fUpToDate ? MarkerPositionIndex.getUpToDate(database) : MarkerPositionIndex.get(database)).getRegion(linkageGroupNames, minPosition, maxPosition);
+		return (fUpToDate ? MarkerIdIndex.getUpToDate(database) : MarkerIdIndex.get(database)).asList();	// compact shared list sorted by _id
+	}
+
+	/**
+	 * @return the content-identifying part of an extractId (the rest being specific to its owner)
+	 */
+	static private String getExportKey(String extractId) {
+		return extractId.substring(0, Math.min(EXPORT_KEY_LENGTH, extractId.length()));
+	}
+
+	/**
+	 * Export files are published in a folder the container serves without access control. Since export keys are derived from guessable
+	 * inputs, file names are an HMAC of them, which nobody can compute without the server-side secret.
+	 *
+	 * @return the name (without extension) of the file holding the export with the given key
+	 */
+	private String getExportFileBaseName(String exportKey) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(getExportFileSecret(), "HmacSHA256"));
+			return String.format("%064x", new BigInteger(1, mac.doFinal(exportKey.getBytes(StandardCharsets.UTF_8))));
+		} catch (GeneralSecurityException gse) {
+			throw new IllegalStateException("Unable to compute export file name", gse);
+		}
+	}
+
+	/**
+	 * @return the secret export file names are derived from, generated on first use and kept in WEB-INF so that files remain reusable (and exports resumable) after a restart
+	 */
+	synchronized private byte[] getExportFileSecret() {
+		if (exportFileSecret == null) {
+			File secretFile = new File(servletContext.getRealPath(File.separator + "WEB-INF" + File.separator + "brapiExportFileSecret"));
+			try {
+				if (secretFile.length() >= 32)
+					exportFileSecret = Files.readAllBytes(secretFile.toPath());
+				else {
+					exportFileSecret = new byte[32];
+					new SecureRandom().nextBytes(exportFileSecret);
+					Files.write(secretFile.toPath(), exportFileSecret);
+				}
+			} catch (IOException ioe) {
+				LOG.warn("Unable to persist export file secret to " + secretFile.getPath() + ", existing export files will not be reused after a restart", ioe);
+				if (exportFileSecret == null) {
+					exportFileSecret = new byte[32];
+					new SecureRandom().nextBytes(exportFileSecret);
 				}
 			}
 		}
+		return exportFileSecret;
+	}
+
+	/**
+	 * @return the file an export was written to, whatever its format, or null if it does not exist (yet)
+	 */
+	private File findExportFile(String extractId) {
+		File outputFolder = getExportOutputFolder();
+		for (ExportOutputFormat outputFormat : ExportOutputFormat.values()) {
+			File exportFile = new File(outputFolder, getExportFileBaseName(getExportKey(extractId)) + outputFormat.getFileExtension());
+			if (exportFile.exists())
+				return exportFile;
+		}
+		return null;
 	}
 
 	static public class AlleleMatrixRequest {
 
 		public Collection<String> markerprofileDbId;
 		public List<String> markerDbId;
+		public List<String> linkageGroupName;
+		public Long minPosition;
+		public Long maxPosition;
 		public String unknownString;
 		public String sepUnphased;
 		public String sepPhased;
@@ -1232,7 +1798,7 @@ public class BrapiRestController implements ServletContextAware {
 	public Map<String, Object> alleleMatrix(HttpServletRequest request, HttpServletResponse response,
 			@PathVariable String database, @RequestBody AlleleMatrixRequest requestBody) throws Exception {
 		return alleleMatrix(request, response, database, requestBody.markerprofileDbId, requestBody.markerDbId,
-				requestBody.unknownString, requestBody.sepUnphased, requestBody.sepPhased,
+				requestBody.linkageGroupName, requestBody.minPosition, requestBody.maxPosition, requestBody.unknownString, requestBody.sepUnphased, requestBody.sepPhased,
 				requestBody.expandHomozygotes, requestBody.format, requestBody.pageSize, requestBody.page);
 	}
 
@@ -1243,6 +1809,8 @@ public class BrapiRestController implements ServletContextAware {
 			@PathVariable String database,
 			@RequestParam(name = "markerprofileDbId") Collection<String> markerprofileDbIDs,
 			@RequestParam(name = "markerDbId", required = false) List<String> markerDbId,
+			@RequestParam(name = "linkageGroupName", required = false) List<String> linkageGroupNames,
+			@RequestParam(required = false) Long minPosition, @RequestParam(required = false) Long maxPosition,
 			@RequestParam(required = false) String unknownString, @RequestParam(required = false) String sepUnphased,
 			@RequestParam(required = false) String sepPhased, @RequestParam(required = false) Boolean expandHomozygotes,
 			@RequestParam(required = false) String format, @RequestParam(required = false) Integer pageSize,
@@ -1260,6 +1828,11 @@ public class BrapiRestController implements ServletContextAware {
 			return null;
 		}
 
+		if (markerDbId != null && isRegionQuery(linkageGroupNames, minPosition, maxPosition)) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);	// markers may be selected either by ID or by region
+			return null;
+		}
+
 //    	LOG.debug("alleleMatrix called");
 		long before = System.currentTimeMillis();
 
@@ -1268,109 +1841,56 @@ public class BrapiRestController implements ServletContextAware {
 
 		TreeSet<Integer> sortedMarkerprofileDbIDs = new TreeSet<>();
 		sortedMarkerprofileDbIDs.addAll(markerprofileDbIDs.stream().map(csId -> Integer.parseInt(csId)).toList());
-		List<Callset> callsets = mongoTemplate.find(new Query(Criteria.where(GenotypingSample.FIELDNAME_CALLSETS + "._id").in(sortedMarkerprofileDbIDs)), GenotypingSample.class).stream().map(sp -> sp.getCallSets()).flatMap(Collection::stream).toList();
-
-		List<String> wantedMarkerIDs;
-		if (markerDbId != null)
-			wantedMarkerIDs = markerDbId;
-		else {
-			wantedMarkerIDs = new ArrayList<String>();
-			Document projectObject = new Document("_id", 1);
-			MongoCursor<Document> markerCursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find(new Document()).projection(projectObject).iterator();
-			while (markerCursor.hasNext())
-				wantedMarkerIDs.add(markerCursor.next().get("_id").toString());
-		}
+		List<Callset> callsets = getCallsets(mongoTemplate, sortedMarkerprofileDbIDs);
 
 		String unknownGtCode = unknownString == null ? "-" : unknownString;
 		String unPhasedSeparator = sepUnphased == null ? "/" : sepUnphased;
 		String phasedSeparator = sepPhased == null ? "|" : URLDecoder.decode(sepPhased, "UTF-8");
 
-		if ("text/tsv".equalsIgnoreCase(format) || "tsv".equalsIgnoreCase(format)) {
+		ExportOutputFormat outputFormat = ExportOutputFormat.fromFormatParameter(format);
+		List<String> wantedMarkerIDs = getMarkerList(database, markerDbId, linkageGroupNames, minPosition, maxPosition, outputFormat != null);
+		if (outputFormat != null) {
 			resultObject = getStandardResponse(0, 0, 0, 0, true);
 			Status status = new Status();
-			String extractId = System.currentTimeMillis() + Helper.convertToMD5(database + "__" + token);
+			String exportKey = computeExportKey(database, sortedMarkerprofileDbIDs, markerDbId, linkageGroupNames, minPosition, maxPosition, unknownGtCode, unPhasedSeparator, phasedSeparator, expandHomozygotes, outputFormat);
+			String extractId = exportKey + Helper.convertToMD5(database + "__" + token);
 			status.setCode("asynchid");
 			status.setMessage(extractId);
 			Metadata metadata = (Metadata) resultObject.get("metadata");
 			metadata.setStatus(Arrays.asList(status));
 
-			final List<String> finalMarkerList = wantedMarkerIDs;
-			new Thread() {
-				public void run() {
-					ProgressIndicator progress = new ProgressIndicator(extractId, new String[] { "Generating export file" });
-					ProgressIndicator.registerProgressIndicator(progress);
-
-					int nChunkIndex = 0, nChunkSize = IExportHandler.computeQueryChunkSize(mongoTemplate, finalMarkerList.size());
-
-					FileWriter fw = null;
-					try {
-						String relativeOutputFolder = File.separator + TMP_OUTPUT_FOLDER + File.separator;
-						File outputLocation = new File(servletContext.getRealPath(relativeOutputFolder));
-						if (!outputLocation.exists() && !outputLocation.mkdirs()) {
-							throw new Exception("Unable to create folder: " + outputLocation);
-						}
-
-						fw = new FileWriter(
-								new File(outputLocation.getAbsolutePath() + File.separator + extractId + ".tsv"));
-						fw.write("markerprofileDbIds\t" + StringUtils.join(sortedMarkerprofileDbIDs, "\t"));
-
-						HashMap<Callset, String> previousPhasingIds = new HashMap<>();
-						while (nChunkIndex * nChunkSize < finalMarkerList.size()) {
-							progress.setCurrentStepProgress((nChunkIndex * nChunkSize) * 100 / finalMarkerList.size());
-
-							List<String> markerSubList = finalMarkerList.subList(nChunkIndex * nChunkSize, Math.min(finalMarkerList.size(), ++nChunkIndex * nChunkSize));
-							LinkedHashMap<VariantData, Collection<VariantRunData>> variantsAndRuns = MgdbDao.getCallSetGenotypes(mongoTemplate, callsets, markerSubList, true, null/* new Sort(Sort.Direction.DESC, "_id") */);
-							VariantData[] variants = variantsAndRuns.keySet()
-									.toArray(new VariantData[variantsAndRuns.size()]);
-							for (int i = 0; i < variantsAndRuns.size(); i++) {
-								Collection<VariantRunData> runs = variantsAndRuns.get(variants[i]);
-								if (runs != null) {
-									for (VariantRunData run : runs) {
-										VariantRunDataId variantRunDataId = run.getId();
-										fw.write(IExportHandler.LINE_SEPARATOR + variantRunDataId.getVariantId());
-										for (Callset callSet : callsets) {
-											SampleGenotype sampleGenotype = run.getSampleGenotypes().get(callSet.getId());
-											if (sampleGenotype == null) {
-												fw.write("\t");
-												continue; // no data in this run + marker for that callset
-											}
-
-											String currentPhId = (String) sampleGenotype.getAdditionalInfo() .get(VariantData.GT_FIELD_PHASED_ID);
-											boolean fPhased = currentPhId != null && currentPhId.equals(previousPhasingIds.get(callSet));
-											previousPhasingIds.put(callSet, currentPhId == null ? variantRunDataId.getVariantId() : currentPhId);
-
-											String gtCode = sampleGenotype.getCode();
-											if (gtCode == null || gtCode.length() == 0)
-												fw.write("\t" + unknownGtCode);
-											else {
-												List<String> alleles = variants[i].getAllelesFromGenotypeCode(gtCode);
-												if (!Boolean.TRUE.equals(expandHomozygotes) && new HashSet<String>(alleles).size() == 1)
-													fw.write("\t" + alleles.get(0));
-												else
-													fw.write("\t" + StringUtils.join(alleles, fPhased ? phasedSeparator : unPhasedSeparator));
-											}
-										}
-									}
-								}
-							}
-						}
-						progress.setCurrentStepProgress(100);
-						progress.markAsComplete();
-						LOG.debug("alleleMatrix took " + (System.currentTimeMillis() - before) / 1000d + "s");
-					} catch (Exception e) {
-						progress.setError("Error writing alleleMatrix to tsv file: " + e.getMessage());
-						LOG.error("Error writing alleleMatrix to tsv file", e);
-					} finally {
-						if (fw != null)
-							try {
-								fw.close();
-							} catch (IOException ignored) {
-							}
-					}
-				}
-			}.start();
+			File existingFile = findExportFile(extractId);
+			if (existingFile != null) {
+				getExportFileJanitor().touch(existingFile);
+				LOG.debug("Reusing existing alleleMatrix export file for " + extractId);
+				((Map<String, Object>) resultObject.get("result")).put("data", data);
+				return resultObject;
+			}
 
-			cleanupOldExportData(request);
+			ExportJobRecord record = new ExportJobRecord();
+			record.extractId = extractId;
+			record.exportKey = exportKey;
+			record.ownerKey = Helper.convertToMD5(database + "__" + token);
+			record.markerprofileDbIds = new ArrayList<>(sortedMarkerprofileDbIDs);
+			record.markerDbIds = markerDbId;
+			record.linkageGroupNames = linkageGroupNames;
+			record.minPosition = minPosition;
+			record.maxPosition = maxPosition;
+			record.unknownString = unknownGtCode;
+			record.sepUnphased = unPhasedSeparator;
+			record.sepPhased = phasedSeparator;
+			record.expandHomozygotes = expandHomozygotes;
+			record.format = outputFormat;
+			record.versionStamp = DatabaseVersionTracker.getVersionStamp(database);
+			mongoTemplate.save(record);
+			try {
+				submitExport(mongoTemplate, database, record, callsets, wantedMarkerIDs);	// if attached to an identical export, the record only tracks this requester's state
+			} catch (RejectedExecutionException ree) {
+				mongoTemplate.remove(record);
+				LOG.info(ree.getMessage());
+				response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+				return null;
+			}
 		} else {
 			final int MAX_SUPPORTED_MATRIX_SIZE = 30000;
 
@@ -1382,36 +1902,27 @@ public class BrapiRestController implements ServletContextAware {
 			}
 
 			int numberOfMarkersToReturn = (int) Math.ceil(pageSize / markerprofileDbIDs.size());
-			int totalMarkerCount = (int) (markerDbId != null ? markerDbId.size()
-					: Helper.estimDocCount(mongoTemplate, VariantData.class));
+			int totalMarkerCount = wantedMarkerIDs.size();
 
 			wantedMarkerIDs = wantedMarkerIDs.subList(page * numberOfMarkersToReturn,
 					Math.min(wantedMarkerIDs.size(), (page + 1) * numberOfMarkersToReturn));
 
 			LinkedHashMap<VariantData, Collection<VariantRunData>> variantsAndRuns = MgdbDao.getCallSetGenotypes(mongoTemplate, callsets, wantedMarkerIDs, true, null/* new Sort(Sort.Direction.DESC, "_id") */); // query mongodb for matching genotypes
 			VariantData[] variants = variantsAndRuns.keySet().toArray(new VariantData[variantsAndRuns.size()]);
+			GenotypeRenderer genotypeRenderer = new GenotypeRenderer(unknownGtCode, unPhasedSeparator, phasedSeparator, expandHomozygotes);
 			for (int i = 0; i < variantsAndRuns.size(); i++) {
 				Collection<VariantRunData> runs = variantsAndRuns.get(variants[i]);
 				if (runs != null) {
+					genotypeRenderer.setVariant(variants[i]);
 					for (VariantRunData run : runs) {
 						for (Integer callSetId : run.getSampleGenotypes().keySet()) {
 							SampleGenotype sampleGenotype = run.getSampleGenotypes().get(callSetId);
 							String gtCode = sampleGenotype.getCode(); // we don't support exporting phasing information
 																		// because of complexity due to pagination
-							ArrayList<String> gtList = new ArrayList<String>();
+							ArrayList<String> gtList = new ArrayList<String>(3);
 							gtList.add(variants[i].getId().toString());
 							gtList.add("" + callSetId);
-							if (gtCode == null || gtCode.length() == 0) {
-								gtList.add(unknownGtCode);
-							} else {
-								List<String> alleles = variants[i].getAllelesFromGenotypeCode(gtCode);
-								if (!Boolean.TRUE.equals(expandHomozygotes)
-										&& new HashSet<String>(alleles).size() == 1) {
-									gtList.add(alleles.get(0));
-								} else {
-									gtList.add(StringUtils.join(alleles, unPhasedSeparator));
-								}
-							}
+							gtList.add(genotypeRenderer.render(gtCode, false));
 							data.add(gtList);
 						}
 					}
@@ -1436,30 +1947,152 @@ public class BrapiRestController implements ServletContextAware {
 			return null;
 		}
 
-		ProgressIndicator progress = ProgressIndicator.get(extractID);
-		if (progress == null) {
-			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
-			return null;
+		AlleleMatrixExportScheduler.ExportJob job = getExportScheduler().getActiveJob(extractID);	// also finds identical exports this requester is attached to
+		ProgressIndicator progress = job != null ? job.getProgress() : null;
+		File exportFile = findExportFile(extractID);
+		if (exportFile != null)
+			getExportFileJanitor().touch(exportFile);
+		if (job == null) {	// the job ended (possibly before a restart), or this requester cancelled it: see what its record says
+			MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+			ExportJobRecord record = mongoTemplate == null ? null : mongoTemplate.findById(extractID, ExportJobRecord.class);
+			if (record != null && (record.state == ExportJobRecord.State.FAILED || record.state == ExportJobRecord.State.CANCELLED)) {
+				progress = new ProgressIndicator(extractID, new String[] { "Generating export file" });
+				progress.setError("Export " + record.state.name().toLowerCase());
+			}
+			else if (exportFile == null) {
+				progress = ProgressIndicator.get(extractID);
+				if (progress == null) {
+					response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+					return null;
+				}
+			}
 		}
 
-		Map<String, Object> resultObject = getStandardResponse(0, (int) (progress.getCurrentStepProgress()), 0, 0, true);
+		boolean fComplete = progress == null /* file generated for an identical request */ || progress.isComplete();
+		Map<String, Object> resultObject = getStandardResponse(0, progress == null ? 100 : (int) (progress.getCurrentStepProgress()), 0, 0, true);
 		Metadata metadata = (Metadata) resultObject.get("metadata");
 		Status status = new Status();
 		status.setCode("asynchstatus");
-		boolean fGotError = progress.getError() != null;
-		status.setMessage(progress.isComplete() ? "FINISHED" : (fGotError ? "FAILED" : "INPROCESS"));
+		boolean fGotError = !fComplete && progress.getError() != null;
+		int nQueuePosition = fGotError || fComplete ? -1 : getExportScheduler().getQueuePosition(job);
+		status.setMessage(fComplete ? "FINISHED" : (fGotError ? "FAILED" : (nQueuePosition > 0 ? "PENDING" : "INPROCESS")));
 		if (fGotError) {
 			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
 		}
+		List<Status> statusList = new ArrayList<>(Arrays.asList(status));
+		if (nQueuePosition > 0) {
+			Status queueStatus = new Status();
+			queueStatus.setCode("queueposition");
+			queueStatus.setMessage("" + nQueuePosition);
+			statusList.add(queueStatus);
+		}
+		ExportMetrics metrics = job == null ? null : job.getTask().getMetrics();
+		if (metrics != null)
+			statusList.addAll(getMetricsStatusList(metrics));
 
-		if (progress.isComplete()) {
+		if (fComplete && exportFile != null) {
 			String sWebAppRoot = appConfig.get("enforcedWebapRootUrl");
 			/*FIXME: not sure this project should depend on role_manager*/
-			String fileUrl = (sWebAppRoot == null ? BackOfficeController.determinePublicHostName(request) + request.getContextPath() : sWebAppRoot) + "/" + TMP_OUTPUT_FOLDER + "/" + extractID + ".tsv";
+			String webAppRootUrl = sWebAppRoot == null ? BackOfficeController.determinePublicHostName(request) + request.getContextPath() : sWebAppRoot;
+			String fileUrl = webAppRootUrl + "/" + TMP_OUTPUT_FOLDER + "/" + exportFile.getName();
 			metadata.setDatafiles(Arrays.asList(fileUrl));
+
+			Status downloadStatus = new Status();	// same file, served with range support and access control
+			downloadStatus.setCode("downloadurl");
+			downloadStatus.setMessage(webAppRootUrl + request.getRequestURI().substring(request.getContextPath().length()).replace("/" + URL_ALLELE_MATRIX_STATUS + "/", "/" + URL_ALLELE_MATRIX_DOWNLOAD + "/"));
+			statusList.add(downloadStatus);
 		}
 
-		metadata.setStatus(Arrays.asList(status));
+		metadata.setStatus(statusList);
+		return resultObject;
+	}
+
+	static private List<Status> getMetricsStatusList(ExportMetrics metrics) {
+		Map<String, Long> values = new LinkedHashMap<>();
+		values.put("chunksize", (long) metrics.getChunkSize());
+		values.put("markercount", metrics.getMarkerCount());
+		values.put("cellcount", metrics.getCellCount());
+		values.put("bytecount", metrics.getByteCount());
+		values.put("fetchmillis", metrics.getFetchMillis());
+		values.put("formatmillis", metrics.getFormatMillis());
+		values.put("markerspersecond", metrics.getCurrentMarkersPerSecond());
+		values.put("etaseconds", metrics.getEtaSeconds());
+		List<Status> statusList = new ArrayList<>();
+		for (Map.Entry<String, Long> entry : values.entrySet()) {
+			Status status = new Status();
+			status.setCode(entry.getKey());
+			status.setMessage("" + entry.getValue());
+			statusList.add(status);
+		}
+		return statusList;
+	}
+
+	@ApiOperation(authorizations = { @Authorization(value = "AuthorizationToken") }, value = "alleleMatrixExportMetrics", notes = "Throughput of alleleMatrix exports completed since startup, by chunk size")
+	@RequestMapping(value = "/{database:.+}" + URL_BASE_PREFIX + "/" + URL_ALLELE_MATRIX_METRICS, method = RequestMethod.GET, produces = "application/json")
+	public Map<String, Object> alleleMatrixExportMetrics(HttpServletRequest request, HttpServletResponse response, @PathVariable String database) throws Exception {
+		if (!tokenManager.canUserReadDB(tokenManager.readToken(request), database)) {
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			return null;
+		}
+
+		List<Map<String, Object>> data = new ArrayList<>();
+		for (Map.Entry<Integer, ExportMetrics.Aggregate> entry : ExportMetrics.getAggregates(database).entrySet()) {
+			Map<String, Object> aggregate = new LinkedHashMap<>();
+			aggregate.put("chunkSize", entry.getKey());
+			aggregate.putAll(entry.getValue().toMap());
+			data.add(aggregate);
+		}
+		Map<String, Object> resultObject = getStandardResponse(data.size(), 0, data.size(), data.size(), true);
+		((Map<String, Object>) resultObject.get("result")).put("data", data);
+		return resultObject;
+	}
+
+	@ApiOperation(authorizations = { @Authorization(value = "AuthorizationToken") }, value = "alleleMatrixExportDownload")
+	@RequestMapping(value = "/{database:.+}" + URL_BASE_PREFIX + "/" + URL_ALLELE_MATRIX_DOWNLOAD + "/{extractID}", method = { RequestMethod.GET, RequestMethod.HEAD })
+	public void alleleMatrixExportDownload(HttpServletRequest request, HttpServletResponse response, @PathVariable String database, @PathVariable String extractID) throws Exception {
+		String token = tokenManager.readToken(request);
+		if (!tokenManager.canUserReadDB(token, database) || !extractID.endsWith(Helper.convertToMD5(database + "__" + token))) {
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		File exportFile = findExportFile(extractID);
+		if (exportFile == null) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		getExportFileJanitor().touch(exportFile);
+		ExportOutputFormat outputFormat = Arrays.stream(ExportOutputFormat.values()).filter(f -> exportFile.getName().endsWith(f.getFileExtension())).findFirst().get();
+		ExportFileSender.send(request, response, exportFile, outputFormat.getContentType());
+	}
+
+	@ApiOperation(authorizations = { @Authorization(value = "AuthorizationToken") }, value = "alleleMatrixExportCancel")
+	@RequestMapping(value = "/{database:.+}" + URL_BASE_PREFIX + "/" + URL_ALLELE_MATRIX_STATUS + "/{extractID}", method = RequestMethod.DELETE, produces = "application/json")
+	public Map<String, Object> alleleMatrixExportCancel(HttpServletRequest request, HttpServletResponse response, @PathVariable String database, @PathVariable String extractID) throws Exception {
+		String token = tokenManager.readToken(request);
+		if (!tokenManager.canUserReadDB(token, database) || !extractID.endsWith(Helper.convertToMD5(database + "__" + token))) {
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			return null;
+		}
+
+		if (!getExportScheduler().cancel(extractID)) {
+			response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+			return null;
+		}
+
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+		ExportJobRecord record = mongoTemplate == null ? null : mongoTemplate.findById(extractID, ExportJobRecord.class);
+		if (record != null && (record.state == ExportJobRecord.State.QUEUED || record.state == ExportJobRecord.State.RUNNING)) {	// the export itself may go on for other requesters
+			record.setState(ExportJobRecord.State.CANCELLED);
+			mongoTemplate.save(record);
+		}
+
+		Map<String, Object> resultObject = getStandardResponse(0, 0, 0, 0, false);
+		Status status = new Status();
+		status.setCode("asynchstatus");
+		status.setMessage("FAILED");
+		((Metadata) resultObject.get("metadata")).setStatus(Arrays.asList(status));
 		return resultObject;
 	}
 
@@ -1549,8 +2182,67 @@ public class BrapiRestController implements ServletContextAware {
 		resp.getWriter().write("This resource does not exist");
 	}
 
+	private int getIntConfigValue(String key, int defaultValue) {
+		String value = appConfig.get(key);
+		if (value == null || value.trim().isEmpty())
+			return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			LOG.warn("Invalid value for " + key + " in configuration: " + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @return the time allowed for the queries of a given call, after which results are returned without a total count
+	 */
+	private long getQueryDeadlineMillis(String call) {
+		return getIntConfigValue("brapiQueryDeadlineMillis_" + call, getIntConfigValue("brapiQueryDeadlineMillis", DEFAULT_QUERY_DEADLINE_MILLIS));
+	}
+
+	synchronized private AlleleMatrixExportScheduler getExportScheduler() {
+		if (exportScheduler == null)
+			exportScheduler = new AlleleMatrixExportScheduler(getIntConfigValue("brapiExportWorkerCount", DEFAULT_EXPORT_WORKER_COUNT), getIntConfigValue("brapiExportMaxJobsPerDatabase", DEFAULT_MAX_EXPORTS_PER_DATABASE), getIntConfigValue("brapiExportMaxJobsPerUser", DEFAULT_MAX_EXPORTS_PER_USER));
+		return exportScheduler;
+	}
+
+	synchronized private ExportFileJanitor getExportFileJanitor() {
+		if (exportFileJanitor == null) {
+			final AlleleMatrixExportScheduler scheduler = getExportScheduler();
+			exportFileJanitor = new ExportFileJanitor(getExportOutputFolder(), EXPORT_FILE_EXPIRATION_DELAY_MILLIS, getIntConfigValue("brapiExportDiskQuotaMB", 0) * 1024L * 1024L, scheduler::isWritingTo);
+		}
+		return exportFileJanitor;
+	}
+
 	@Override
 	public void setServletContext(ServletContext servletContext) {
 		this.servletContext = servletContext;
 	}
+
+	@Override
+	public void onApplicationEvent(ContextRefreshedEvent event) {
+		if (fExportResumptionLaunched)
+			return;	// the event may be fired once per context
+		fExportResumptionLaunched = true;
+		Thread resumptionThread = new Thread(() -> {
+			try {
+				resumeInterruptedExports();
+			} finally {
+				getExportFileJanitor().start();	// only now, so that checkpoint files of resumed exports count as in use
+			}
+		}, "alleleMatrixExportResumption");
+		resumptionThread.setDaemon(true);
+		resumptionThread.start();
+	}
+
+	@Override
+	synchronized public void destroy() {
+		if (exportScheduler != null)
+			exportScheduler.shutdown();
+		if (exportFileJanitor != null)
+			exportFileJanitor.shutdown();
+		resultCountCache.shutdown();
+		germplasmSearchResultStore.shutdown();
+	}
 }
@@ -0,0 +1,107 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output sink for files in a given ExportOutputFormat, whose contents may be made durable at any point by calling
+ * checkpoint(). A file truncated at a checkpoint offset is a valid (non-terminated) prefix that may be appended to,
+ * since each checkpoint closes the current compressed part (gzip member / BGZF block).
+ *
+ * @author sempere
+ */
+public class CheckpointableOutputStream extends OutputStream {
+
+	private final FileOutputStream fileStream;
+	private final ExportOutputFormat format;
+	private OutputStream partStream;
+	private boolean fClosed = false;
+
+	/**
+	 * @param nResumeOffset offset at which to truncate an existing file before appending to it, or a negative value to create a new file
+	 */
+	public CheckpointableOutputStream(File file, long nResumeOffset, ExportOutputFormat format) throws IOException {
+		this.format = format;
+		fileStream = new FileOutputStream(file, nResumeOffset >= 0);
+		if (nResumeOffset >= 0)
+			fileStream.getChannel().truncate(nResumeOffset);
+		partStream = openPart();
+	}
+
+	private OutputStream openPart() throws IOException {
+		OutputStream nonClosingFileStream = new FilterOutputStream(fileStream) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				out.flush();
+			}
+		};
+		return new BufferedOutputStream(format.wrap(nonClosingFileStream, false), ExportOutputFormat.WRITE_BUFFER_SIZE);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		partStream.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		partStream.write(b, off, len);
+	}
+
+	/**
+	 * Closes the current part and writes it to disk
+	 *
+	 * @return the file size, i.e. the offset to resume from if anything goes wrong afterwards
+	 */
+	public long checkpoint() throws IOException {
+		partStream.close();
+		fileStream.getFD().sync();
+		long nOffset = fileStream.getChannel().position();
+		partStream = openPart();	// must come after reading the position since some formats write a header right away
+		return nOffset;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		partStream.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (fClosed)
+			return;
+		fClosed = true;
+		try {
+			partStream.close();
+			fileStream.write(format.getTerminator());
+		} finally {
+			fileStream.close();
+		}
+	}
+}
@@ -0,0 +1,117 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches chunks in a background thread so that chunk N+1 gets loaded while chunk N is being consumed.
+ * The hand-off buffer is bounded: at most nBufferSize chunks wait for the consumer, plus the one being fetched.
+ * The producer runs on the passed executor, so that shutting the latter down stops it.
+ *
+ * @author sempere
+ */
+public class ChunkPrefetcher<T> implements AutoCloseable {
+
+	public interface ChunkFetcher<T> {
+		T fetch(int nChunkIndex) throws Exception;
+	}
+
+	static private final Object END_OF_CHUNKS = new Object();
+
+	static private class FetchError {
+		private final Throwable throwable;
+
+		private FetchError(Throwable throwable) {
+			this.throwable = throwable;
+		}
+	}
+
+	private final BlockingQueue<Object> buffer;
+	private final Future<?> producer;
+	private volatile boolean fClosed = false;
+	private boolean fExhausted = false;
+
+	public ChunkPrefetcher(int nChunkCount, int nBufferSize, ChunkFetcher<T> fetcher, ExecutorService executor, String sThreadName) {
+		buffer = new ArrayBlockingQueue<>(Math.max(1, nBufferSize));
+		producer = executor.submit(() -> {
+			String sPreviousThreadName = Thread.currentThread().getName();
+			Thread.currentThread().setName(sThreadName);
+			try {
+				for (int i = 0; i < nChunkCount && !fClosed; i++) {
+					T chunk = fetcher.fetch(i);
+					buffer.put(chunk == null ? END_OF_CHUNKS : chunk);
+					if (chunk == null)
+						return;
+				}
+				buffer.put(END_OF_CHUNKS);
+			} catch (InterruptedException ie) {
+				if (!fClosed) {	// executor shutdown: make sure the consumer does not wait forever
+					buffer.clear();
+					buffer.offer(new FetchError(ie));
+				}
+			} catch (Throwable t) {	// including errors, which would otherwise leave the consumer waiting forever
+				if (!fClosed)
+					try {
+						buffer.put(new FetchError(t));
+					} catch (InterruptedException ie) {
+						buffer.clear();
+						buffer.offer(new FetchError(ie));
+					}
+			} finally {
+				Thread.currentThread().setName(sPreviousThreadName);
+			}
+		});
+	}
+
+	/**
+	 * Waits for the next chunk.
+	 *
+	 * @return the next chunk, or null once all chunks have been consumed
+	 * @throws Exception the exception thrown by the fetcher, if any (errors are rethrown as such)
+	 */
+	@SuppressWarnings("unchecked")
+	public T next() throws Exception {
+		if (fExhausted)
+			return null;
+
+		Object item = buffer.take();
+		if (item == END_OF_CHUNKS) {
+			fExhausted = true;
+			return null;
+		}
+		if (item instanceof FetchError) {
+			fExhausted = true;
+			Throwable t = ((FetchError) item).throwable;
+			if (t instanceof Error)
+				throw (Error) t;
+			throw (Exception) t;
+		}
+		return (T) item;
+	}
+
+	@Override
+	public void close() {
+		fClosed = true;
+		producer.cancel(true);
+		buffer.clear();
+	}
+}
@@ -0,0 +1,77 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Opaque pagination token allowing to fetch the page following a given one with an _id range condition instead of
+ * skip(). It embeds the hash of the filter it was issued for, so that it cannot be replayed against another query.
+ *
+ * @author sempere
+ */
+public class ContinuationToken {
+
+	static private final String VERSION = "1";
+	static private final String SEPARATOR = "|";
+
+	private final String filterKey;
+	private final int nextIndex;
+	private final String lastId;
+
+	public ContinuationToken(String filterKey, int nextIndex, String lastId) {
+		this.filterKey = filterKey;
+		this.nextIndex = nextIndex;
+		this.lastId = lastId;
+	}
+
+	/**
+	 * @return the number of items before the page this token points to
+	 */
+	public int getNextIndex() {
+		return nextIndex;
+	}
+
+	/**
+	 * @return the _id of the last item of the previous page
+	 */
+	public String getLastId() {
+		return lastId;
+	}
+
+	public String encode() {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(String.join(SEPARATOR, VERSION, filterKey, Integer.toString(nextIndex), lastId).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the token is malformed or was issued for another filter
+	 */
+	static public ContinuationToken decode(String token, String expectedFilterKey) throws IllegalArgumentException {
+		String[] parts = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8).split("\\" + SEPARATOR, 4);	// IDs may contain the separator
+		if (parts.length != 4 || !VERSION.equals(parts[0]))
+			throw new IllegalArgumentException("Invalid page token");
+		if (!parts[1].equals(expectedFilterKey))
+			throw new IllegalArgumentException("Page token was issued for a different query");
+		try {
+			return new ContinuationToken(parts[1], Integer.parseInt(parts[2]), parts[3]);
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Invalid page token");
+		}
+	}
+}
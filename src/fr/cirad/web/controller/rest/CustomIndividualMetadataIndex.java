@@ -0,0 +1,80 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import fr.cirad.mgdb.model.mongo.maintypes.CustomIndividualMetadata;
+import fr.cirad.mgdb.model.mongo.maintypes.CustomIndividualMetadata.CustomIndividualMetadataId;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * Caches, for each database and user, the IDs of individuals for which the user has custom metadata. Individuals
+ * outside this set look the same to every user, and may thus be served straight from the Individual collection
+ * without merging per-user metadata. Entries are checked against the custom metadata collection's signature (see
+ * DatabaseVersionTracker.getCollectionSignature), which changes with any write to it. Metadata contents are not
+ * cached, customized individuals being reloaded whenever served.
+ *
+ * @author sempere
+ */
+public class CustomIndividualMetadataIndex {
+
+	static private class Entry {
+		private final Set<String> individualIDs;
+		private final String validityKey;
+
+		private Entry(Set<String> individualIDs, String validityKey) {
+			this.individualIDs = individualIDs;
+			this.validityKey = validityKey;
+		}
+	}
+
+	static private final Map<String /* database + user */, Entry> entries = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the IDs of individuals for which the given user has custom metadata in the given database
+	 */
+	static public Set<String> getCustomizedIndividuals(String database, String user) {
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+		String validityKey = DatabaseVersionTracker.getCollectionSignature(database, mongoTemplate, CustomIndividualMetadata.class);	// read before the distinct so that concurrent changes are not overlooked
+		String key = database + "\n" + user;
+		Entry entry = entries.get(key);
+		if (entry != null && entry.validityKey.equals(validityKey))
+			return entry.individualIDs;
+
+		Set<String> individualIDs = mongoTemplate.getCollection(mongoTemplate.getCollectionName(CustomIndividualMetadata.class))
+				.distinct("_id." + CustomIndividualMetadataId.FIELDNAME_INDIVIDUAL_ID, new Document("_id." + CustomIndividualMetadataId.FIELDNAME_USER, user), String.class)
+				.into(new HashSet<>());
+		entries.put(key, new Entry(Collections.unmodifiableSet(individualIDs), validityKey));
+		return individualIDs;
+	}
+
+	/**
+	 * Drops cached entries for the given database, to be called when custom metadata is known to have been modified
+	 */
+	static public void invalidate(String database) {
+		entries.keySet().removeIf(key -> key.startsWith(database + "\n"));
+	}
+}
@@ -0,0 +1,199 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import fr.cirad.mgdb.model.mongo.maintypes.Assembly;
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingProject;
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.Individual;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.tools.Helper;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * Immutable set of database-level metadata needed by most BrAPI calls (default assembly, reference position path,
+ * contigs, taxonomy, document count estimates). The current snapshot for each database is swapped atomically when a
+ * refresh completes; refreshes happen in the background once the data version (see DatabaseVersionTracker) changes or the snapshot gets older
+ * than MAX_AGE_MILLIS, so that callers never wait except for building the very first one (which concurrent callers
+ * wait for rather than each building their own).
+ *
+ * @author sempere
+ */
+public class DatabaseMetadataSnapshot {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(DatabaseMetadataSnapshot.class);
+
+	static private final long MAX_AGE_MILLIS = 1000 * 60 * 5;	// taxonomy and assemblies may change without affecting the version stamp
+
+	static private final Map<String /* database */, DatabaseMetadataSnapshot> snapshots = new ConcurrentHashMap<>();
+	static private final Set<String /* database */> refreshesInProgress = ConcurrentHashMap.newKeySet();
+	static private final Map<String /* database */, Object> buildLocks = new ConcurrentHashMap<>();
+	static private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "databaseMetadataRefresh");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final String versionStamp;
+	private final long createdAt = System.currentTimeMillis();
+	private final Integer assemblyId;
+	private final String refPosPath;
+	private final Set<String> contigs;
+	private final String species;
+	private final String taxonName;
+	private final long individualCount;
+	private final long sampleCount;
+	private final long markerCount;
+
+	private DatabaseMetadataSnapshot(String database, MongoTemplate mongoTemplate, String versionStamp) {
+		this.versionStamp = versionStamp;
+		List<Assembly> assemblies = mongoTemplate.findAll(Assembly.class);
+		assemblyId = assemblies.size() == 0 ? null : assemblies.get(0).getId();
+		refPosPath = Assembly.getVariantRefPosPath(assemblyId);
+		TreeSet<String> distinctSequences = new TreeSet<>();
+		for (GenotypingProject project : mongoTemplate.findAll(GenotypingProject.class))
+			distinctSequences.addAll(project.getContigs(assemblyId));
+		contigs = Collections.unmodifiableSet(distinctSequences);
+		species = MongoTemplateManager.getSpecies(database);
+		taxonName = MongoTemplateManager.getTaxonName(database);
+		individualCount = Helper.estimDocCount(mongoTemplate, Individual.class);
+		sampleCount = Helper.estimDocCount(mongoTemplate, GenotypingSample.class);
+		markerCount = Helper.estimDocCount(mongoTemplate, VariantData.class);
+	}
+
+	/**
+	 * @return the current snapshot for the given database (possibly slightly outdated while a refresh is in progress), or null if the database does not exist
+	 */
+	static public DatabaseMetadataSnapshot get(String database) {
+		String versionStamp = DatabaseVersionTracker.getVersionStamp(database);
+		if (versionStamp == null)
+			return null;
+
+		DatabaseMetadataSnapshot snapshot = snapshots.get(database);
+		if (snapshot == null)
+			synchronized (buildLocks.computeIfAbsent(database, db -> new Object())) {
+				snapshot = snapshots.get(database);
+				return snapshot != null ? snapshot : refresh(database);
+			}
+		if (!versionStamp.equals(snapshot.versionStamp) || System.currentTimeMillis() - snapshot.createdAt > MAX_AGE_MILLIS)
+			refreshInBackground(database);
+		return snapshot;
+	}
+
+	/**
+	 * @return a snapshot built for the database's current version stamp (building it if needed), or null if the database does not exist
+	 */
+	static public DatabaseMetadataSnapshot getUpToDate(String database) {
+		String versionStamp = DatabaseVersionTracker.getVersionStamp(database);
+		if (versionStamp == null)
+			return null;
+
+		DatabaseMetadataSnapshot snapshot = snapshots.get(database);
+		if (snapshot != null && versionStamp.equals(snapshot.versionStamp))
+			return snapshot;
+		synchronized (buildLocks.computeIfAbsent(database, db -> new Object())) {
+			snapshot = snapshots.get(database);
+			return snapshot != null && versionStamp.equals(snapshot.versionStamp) ? snapshot : refresh(database);
+		}
+	}
+
+	/**
+	 * Builds a new snapshot for the given database and makes it current
+	 */
+	static public DatabaseMetadataSnapshot refresh(String database) {
+		synchronized (buildLocks.computeIfAbsent(database, db -> new Object())) {
+			MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+			if (mongoTemplate == null) {
+				snapshots.remove(database);
+				return null;
+			}
+			DatabaseMetadataSnapshot snapshot = new DatabaseMetadataSnapshot(database, mongoTemplate, DatabaseVersionTracker.getVersionStamp(database));
+			snapshots.put(database, snapshot);
+			return snapshot;
+		}
+	}
+
+	static public void refreshInBackground(String database) {
+		if (refreshesInProgress.add(database))
+			refreshExecutor.execute(() -> {
+				try {
+					refresh(database);
+				} catch (Exception e) {
+					LOG.warn("Unable to refresh metadata snapshot for " + database, e);
+				} finally {
+					refreshesInProgress.remove(database);
+				}
+			});
+	}
+
+	/**
+	 * @return the version stamp of the data this snapshot was built from
+	 */
+	public String getVersionStamp() {
+		return versionStamp;
+	}
+
+	public Integer getAssemblyId() {
+		return assemblyId;
+	}
+
+	public String getRefPosPath() {
+		return refPosPath;
+	}
+
+	/**
+	 * @return distinct contigs (sorted) referenced by the database's projects for the default assembly
+	 */
+	public Set<String> getContigs() {
+		return contigs;
+	}
+
+	public String getSpecies() {
+		return species;
+	}
+
+	public String getTaxonName() {
+		return taxonName;
+	}
+
+	public long getIndividualCount() {
+		return individualCount;
+	}
+
+	public long getSampleCount() {
+		return sampleCount;
+	}
+
+	public long getMarkerCount() {
+		return markerCount;
+	}
+}
@@ -0,0 +1,156 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingProject;
+import fr.cirad.mgdb.model.mongo.maintypes.GenotypingSample;
+import fr.cirad.mgdb.model.mongo.maintypes.Individual;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.mgdb.model.mongo.maintypes.VariantRunData;
+import fr.cirad.tools.Helper;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * Provides a cheap data-version stamp for each database, used as a validity key by caches and reusable exports.
+ * The stamp is derived, for each collection holding genotyping data, from its document count and from the number of
+ * write operations (inserts, updates, deletes) MongoDB has applied to it, as reported by the $collStats stage's
+ * latency statistics. Any write thus changes the stamp, including in-place edits of positions, synonyms or genotypes.
+ * Stamps are re-read in the background once they get older than REFRESH_INTERVAL_MILLIS (only the first stamp for a
+ * database is computed synchronously), so they may lag behind actual data by that much. Write counters start over when
+ * the MongoDB server restarts, which changes stamps as well. Where $collStats is not available (e.g. for lack of
+ * privileges), only document counts are taken into account, so in-place edits go unnoticed unless invalidate() is
+ * called. Everything keyed by these stamps (VersionedCache instances, result caches, reusable export files) is subject
+ * to the same delays and limitations.
+ *
+ * @author sempere
+ */
+public class DatabaseVersionTracker {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(DatabaseVersionTracker.class);
+
+	static private final long REFRESH_INTERVAL_MILLIS = 10000;
+	static private final List<Class<?>> TRACKED_CLASSES = Arrays.asList(VariantData.class, VariantRunData.class, GenotypingSample.class, Individual.class, GenotypingProject.class);
+
+	static private class VersionStamp {
+		private final String value;
+		private final long computedAt;
+
+		private VersionStamp(String value, long computedAt) {
+			this.value = value;
+			this.computedAt = computedAt;
+		}
+	}
+
+	static private final Map<String /* database */, VersionStamp> stamps = new ConcurrentHashMap<>();
+	static private final Map<String /* database */, Long> generations = new ConcurrentHashMap<>();
+	static private final Set<String /* database */> databasesWarnedAboutWriteCounts = ConcurrentHashMap.newKeySet();
+	static private final Set<String /* database */> refreshesInProgress = ConcurrentHashMap.newKeySet();
+	static private final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "databaseVersionRefresh");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * @return the current data-version stamp for the given database, or null if it does not exist
+	 */
+	static public String getVersionStamp(String database) {
+		VersionStamp stamp = stamps.get(database);
+		if (stamp == null)
+			stamp = computeStamp(database);
+		else if (System.currentTimeMillis() - stamp.computedAt > REFRESH_INTERVAL_MILLIS && refreshesInProgress.add(database))
+			refreshExecutor.execute(() -> {
+				try {
+					computeStamp(database);
+				} catch (Exception e) {
+					LOG.warn("Unable to refresh version stamp for " + database, e);
+				} finally {
+					refreshesInProgress.remove(database);
+				}
+			});
+		return stamp == null ? null : stamp.value;
+	}
+
+	static private VersionStamp computeStamp(String database) {
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+		if (mongoTemplate == null) {
+			stamps.remove(database);
+			return null;
+		}
+
+		long now = System.currentTimeMillis();
+		Long generation = generations.getOrDefault(database, 0L);
+		StringBuilder value = new StringBuilder(generation.toString());
+		for (Class<?> trackedClass : TRACKED_CLASSES)
+			value.append(":").append(getCollectionSignature(database, mongoTemplate, trackedClass));
+		VersionStamp stamp = new VersionStamp(value.toString(), now);
+		stamps.put(database, stamp);
+		if (!generation.equals(generations.getOrDefault(database, 0L)))	// invalidated meanwhile
+			stamps.remove(database, stamp);
+		return stamp;
+	}
+
+	/**
+	 * @return the collection's document count, followed by the number of write operations applied to it since the MongoDB server started, when available
+	 * (i.e. a value that changes with any write to the collection, unless only the document count may be obtained: see class description)
+	 */
+	static String getCollectionSignature(String database, MongoTemplate mongoTemplate, Class<?> entityClass) {
+		try {
+			long count = 0, writeCount = 0;
+			List<Document> pipeline = Arrays.asList(new Document("$collStats", new Document("latencyStats", new Document()).append("count", new Document())));
+			try (MongoCursor<Document> it = mongoTemplate.getCollection(mongoTemplate.getCollectionName(entityClass)).aggregate(pipeline).iterator()) {
+				while (it.hasNext()) {	// one document per shard
+					Document stats = it.next();
+					Document writeStats = (Document) ((Document) stats.get("latencyStats")).get("writes");
+					count += ((Number) stats.get("count")).longValue();
+					writeCount += ((Number) writeStats.get("ops")).longValue();
+				}
+			}
+			return count + "/" + writeCount;
+		} catch (MongoCommandException mce) {	// $collStats not supported or not allowed, or collection not created yet
+			if (databasesWarnedAboutWriteCounts.add(database))
+				LOG.warn("Unable to obtain write counts for " + mongoTemplate.getCollectionName(entityClass) + " in " + database + ", in-place edits may go unnoticed", mce);
+		}
+		return Long.toString(Helper.estimDocCount(mongoTemplate, entityClass));
+	}
+
+	/**
+	 * Forces the stamp to change, to be called when data is known to have been modified
+	 */
+	static public void invalidate(String database) {
+		generations.merge(database, 1L, Long::sum);
+		stamps.remove(database);
+	}
+}
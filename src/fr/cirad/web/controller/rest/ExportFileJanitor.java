@@ -0,0 +1,183 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Removes export files in the background, once they have expired or when the folder exceeds its disk quota (least
+ * recently used files first). Files are tracked in an in-memory index so that sweeps need not list the folder, which
+ * is only re-scanned every RESCAN_INTERVAL_MILLIS to pick up files it was not told about. Files for which the passed
+ * predicate returns true (i.e. being written by in-flight jobs) are never removed. Sweeping only begins once start()
+ * has been called, which lets interrupted jobs be re-registered first so that their checkpoint files are not mistaken for leftovers.
+ *
+ * @author sempere
+ */
+public class ExportFileJanitor {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(ExportFileJanitor.class);
+
+	static private final long SWEEP_INTERVAL_MILLIS = 1000 * 60 * 5;
+	static private final long RESCAN_INTERVAL_MILLIS = 1000 * 60 * 60;
+
+	static private class IndexedFile {
+		private final File file;
+		private final long size;
+		private final long lastModified;
+		private volatile long lastAccessed;
+
+		private IndexedFile(File file) {
+			this.file = file;
+			size = file.length();
+			lastModified = file.lastModified();
+			lastAccessed = lastModified;
+		}
+	}
+
+	private final File folder;
+	private final long expirationDelayMillis;
+	private final long quotaBytes;
+	private final Predicate<String /* file name */> inUsePredicate;
+	private final Map<String /* file name */, IndexedFile> index = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService scheduler;
+	private long lastScanTime = 0;
+	private boolean fStarted = false;
+
+	/**
+	 * @param quotaBytes maximum total size of the folder's contents, or a value <= 0 for no limit
+	 */
+	public ExportFileJanitor(File folder, long expirationDelayMillis, long quotaBytes, Predicate<String> inUsePredicate) {
+		this.folder = folder;
+		this.expirationDelayMillis = expirationDelayMillis;
+		this.quotaBytes = quotaBytes;
+		this.inUsePredicate = inUsePredicate;
+		scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "exportFileJanitor");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Starts sweeping the folder periodically
+	 */
+	synchronized public void start() {
+		if (fStarted)
+			return;
+		fStarted = true;
+		scheduler.scheduleWithFixedDelay(this::sweep, 0, SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Records an access to an export file (adding it to the index if needed), which delays its LRU eviction
+	 */
+	public void touch(File file) {
+		IndexedFile indexedFile = index.get(file.getName());
+		if (indexedFile == null || indexedFile.lastModified != file.lastModified()) {
+			indexedFile = new IndexedFile(file);
+			index.put(file.getName(), indexedFile);
+		}
+		indexedFile.lastAccessed = System.currentTimeMillis();
+	}
+
+	private void rescan() {
+		File[] files = folder.listFiles();
+		if (files == null)
+			return;
+
+		Map<String, File> existingFiles = new HashMap<>();
+		for (File f : files)
+			if (!f.isDirectory())
+				existingFiles.put(f.getName(), f);
+		index.keySet().retainAll(existingFiles.keySet());
+		for (File f : existingFiles.values()) {
+			IndexedFile indexedFile = index.get(f.getName());
+			if (indexedFile == null || indexedFile.lastModified != f.lastModified() || indexedFile.size != f.length()) {
+				IndexedFile newEntry = new IndexedFile(f);
+				if (indexedFile != null)
+					newEntry.lastAccessed = Math.max(newEntry.lastAccessed, indexedFile.lastAccessed);
+				index.put(f.getName(), newEntry);
+			}
+		}
+		lastScanTime = System.currentTimeMillis();
+	}
+
+	private void sweep() {
+		try {
+			long now = System.currentTimeMillis();
+			if (now - lastScanTime > RESCAN_INTERVAL_MILLIS)
+				rescan();
+
+			long totalSize = 0;
+			List<IndexedFile> evictionCandidates = new ArrayList<>();
+			for (IndexedFile indexedFile : index.values()) {
+				if (inUsePredicate.test(indexedFile.file.getName()))
+					totalSize += indexedFile.file.length();	// still growing
+				else if (now - indexedFile.lastModified > expirationDelayMillis)
+					delete(indexedFile, "expired");
+				else {
+					totalSize += indexedFile.size;
+					evictionCandidates.add(indexedFile);
+				}
+			}
+
+			if (quotaBytes > 0 && totalSize > quotaBytes) {
+				evictionCandidates.sort(Comparator.comparingLong(f -> f.lastAccessed));
+				for (IndexedFile indexedFile : evictionCandidates) {
+					if (totalSize <= quotaBytes)
+						break;
+					if (!inUsePredicate.test(indexedFile.file.getName()) && delete(indexedFile, "evicted to enforce disk quota"))
+						totalSize -= indexedFile.size;
+				}
+				if (totalSize > quotaBytes)
+					LOG.warn("BrAPI export folder exceeds its quota (" + totalSize + " > " + quotaBytes + " bytes) because of in-flight exports");
+			}
+		} catch (Throwable t) {
+			LOG.error("Error cleaning up BrAPI export folder", t);
+		}
+	}
+
+	private boolean delete(IndexedFile indexedFile, String reason) {
+		index.remove(indexedFile.file.getName(), indexedFile);
+		if (!indexedFile.file.exists())
+			return true;
+		if (!indexedFile.file.delete()) {
+			LOG.warn("Unable to delete " + indexedFile.file.getPath());
+			return false;
+		}
+		LOG.info("BrAPI export file was deleted (" + reason + "): " + indexedFile.file.getPath());
+		return true;
+	}
+
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+}
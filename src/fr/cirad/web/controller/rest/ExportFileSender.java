@@ -0,0 +1,135 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Serves export files with support for single byte-range requests (Range / If-Range), so that interrupted downloads
+ * may be resumed. Contents are handed to the container's sendfile implementation when available (Tomcat NIO/APR),
+ * and otherwise streamed with FileChannel.transferTo.
+ *
+ * @author sempere
+ */
+public class ExportFileSender {
+
+	static private final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+	static private final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+	static private final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+	static private final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+	/**
+	 * @return the [first, last] byte positions requested by the passed Range header, null if the whole file is to be sent, or an empty array if the range is not satisfiable
+	 */
+	static long[] parseRange(String rangeHeader, long nFileLength) {
+		if (rangeHeader == null || !rangeHeader.startsWith("bytes=") || rangeHeader.indexOf(',') != -1)
+			return null;	// multiple ranges are not supported: sending the whole file is a legitimate response to such requests
+
+		String range = rangeHeader.substring("bytes=".length()).trim();
+		int nDashPos = range.indexOf('-');
+		if (nDashPos == -1)
+			return null;
+		try {
+			long nFirst, nLast;
+			if (nDashPos == 0) {	// suffix range
+				long nSuffixLength = Long.parseLong(range.substring(1));
+				if (nSuffixLength <= 0)
+					return new long[0];
+				nFirst = Math.max(0, nFileLength - nSuffixLength);
+				nLast = nFileLength - 1;
+			} else {
+				nFirst = Long.parseLong(range.substring(0, nDashPos));
+				nLast = nDashPos == range.length() - 1 ? nFileLength - 1 : Math.min(nFileLength - 1, Long.parseLong(range.substring(nDashPos + 1)));
+			}
+			return nFirst >= nFileLength || nFirst > nLast ? new long[0] : new long[] { nFirst, nLast };
+		} catch (NumberFormatException nfe) {
+			return null;	// syntactically invalid ranges must be ignored
+		}
+	}
+
+	static public void send(HttpServletRequest request, HttpServletResponse response, File file, String contentType) throws IOException {
+		long nFileLength = file.length();
+		long nLastModified = file.lastModified() / 1000 * 1000;	// HTTP dates have a 1-second precision
+		String eTag = "\"" + file.getName() + "-" + Long.toHexString(nLastModified) + "-" + Long.toHexString(nFileLength) + "\"";
+
+		response.setHeader("Accept-Ranges", "bytes");
+		response.setHeader("ETag", eTag);
+		response.setDateHeader("Last-Modified", nLastModified);
+		response.setHeader("Content-Disposition", "attachment; filename=\"" + file.getName() + "\"");
+		response.setContentType(contentType);
+
+		long[] range = parseRange(request.getHeader("Range"), nFileLength);
+		if (range != null) {
+			String ifRange = request.getHeader("If-Range");
+			if (ifRange != null && !ifRange.trim().equals(eTag)) {
+				long ifRangeDate = -1;
+				try {
+					ifRangeDate = request.getDateHeader("If-Range");
+				} catch (IllegalArgumentException ignored) {	// neither a date nor our ETag
+				}
+				if (ifRangeDate != nLastModified)
+					range = null;	// the file changed since the client got its first part: send it all
+			}
+		}
+
+		long nFirst = 0, nLast = nFileLength - 1;
+		if (range != null) {
+			if (range.length == 0) {
+				response.setHeader("Content-Range", "bytes */" + nFileLength);
+				response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+			nFirst = range[0];
+			nLast = range[1];
+			response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+			response.setHeader("Content-Range", "bytes " + nFirst + "-" + nLast + "/" + nFileLength);
+		}
+		long nLength = nLast - nFirst + 1;
+		response.setContentLengthLong(nLength);
+		if ("HEAD".equals(request.getMethod()) || nLength <= 0)
+			return;
+
+		if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+			request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getCanonicalPath());
+			request.setAttribute(SENDFILE_START_ATTRIBUTE, nFirst);
+			request.setAttribute(SENDFILE_END_ATTRIBUTE, nLast + 1);
+			return;
+		}
+
+		try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			WritableByteChannel responseChannel = Channels.newChannel(response.getOutputStream());
+			long nPosition = nFirst, nRemaining = nLength;
+			while (nRemaining > 0) {
+				long nTransferred = fileChannel.transferTo(nPosition, nRemaining, responseChannel);
+				if (nTransferred <= 0)
+					break;
+				nPosition += nTransferred;
+				nRemaining -= nTransferred;
+			}
+		}
+		response.flushBuffer();
+	}
+}
@@ -0,0 +1,83 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.TypeAlias;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+/**
+ * Durable description of an asynchronous alleleMatrix export, stored in the database it was launched on. It allows
+ * finding out about a job's outcome after a restart, and resuming interrupted jobs from their last completed chunk.
+ *
+ * @author sempere
+ */
+@Document(collection = "brapiExportJobs")
+@TypeAlias("BEJ")
+public class ExportJobRecord {
+
+	public enum State { QUEUED, RUNNING, FINISHED, FAILED, CANCELLED }
+
+	static public final String FIELDNAME_STATE = "st";
+	static public final String FIELDNAME_UPDATE_DATE = "ud";
+
+	@Id
+	public String extractId;
+	public String exportKey;
+	public String ownerKey;
+	@Field(value = FIELDNAME_STATE)
+	public State state = State.QUEUED;
+	@Field(value = FIELDNAME_UPDATE_DATE)
+	@Indexed(expireAfterSeconds = 60 * 60 * 24)	// same lifetime as export files
+	public Date updatedAt = new Date();
+
+	/* request parameters */
+	public List<Integer> markerprofileDbIds;
+	public List<String> markerDbIds;	// null means all markers, or those in the region below if any
+	public List<String> linkageGroupNames;
+	public Long minPosition;
+	public Long maxPosition;
+	public String unknownString;
+	public String sepUnphased;
+	public String sepPhased;
+	public Boolean expandHomozygotes;
+	public ExportOutputFormat format;
+	public String versionStamp;
+
+	/* progress checkpoint */
+	public String outputFileName;
+	public int chunkSize;
+	public int completedChunkCount;
+	public long checkpointOffset;	// size of the temporary output file once completedChunkCount chunks were written
+
+	public void setState(State state) {
+		this.state = state;
+		updatedAt = new Date();
+	}
+
+	public void setCheckpoint(int completedChunkCount, long checkpointOffset) {
+		this.completedChunkCount = completedChunkCount;
+		this.checkpointOffset = checkpointOffset;
+		updatedAt = new Date();
+	}
+}
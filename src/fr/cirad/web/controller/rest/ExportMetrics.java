@@ -0,0 +1,172 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput counters for an alleleMatrix export, along with per-database aggregates (by chunk size) of those
+ * collected for completed exports. Fetch and format times are summed over all threads involved, so with prefetching
+ * or parallel segments their total may exceed the elapsed time.
+ *
+ * @author sempere
+ */
+public class ExportMetrics {
+
+	static private final double RATE_SMOOTHING_FACTOR = .3;	// weight of the latest chunk in the current rate
+
+	private final long totalMarkerCount;
+	private final int chunkSize;
+	private final long startTime = System.currentTimeMillis();
+	private final AtomicLong markerCount = new AtomicLong();
+	private volatile long skippedMarkerCount = 0;
+	private final AtomicLong cellCount = new AtomicLong();
+	private final AtomicLong byteCount = new AtomicLong();
+	private final AtomicLong fetchNanos = new AtomicLong();
+	private final AtomicLong formatNanos = new AtomicLong();
+	private volatile long lastChunkTime = startTime;
+	private volatile double currentMarkersPerSecond = 0;
+	private volatile long endTime = 0;
+
+	static public class Aggregate {
+		private long jobCount, markerCount, cellCount, byteCount, fetchMillis, formatMillis, elapsedMillis;
+
+		synchronized private void add(ExportMetrics metrics) {
+			jobCount++;
+			markerCount += metrics.getMarkerCount();
+			cellCount += metrics.getCellCount();
+			byteCount += metrics.getByteCount();
+			fetchMillis += metrics.getFetchMillis();
+			formatMillis += metrics.getFormatMillis();
+			elapsedMillis += metrics.getElapsedMillis();
+		}
+
+		synchronized public Map<String, Object> toMap() {
+			Map<String, Object> result = new TreeMap<>();
+			result.put("jobCount", jobCount);
+			result.put("markerCount", markerCount);
+			result.put("cellCount", cellCount);
+			result.put("byteCount", byteCount);
+			result.put("fetchMillis", fetchMillis);
+			result.put("formatMillis", formatMillis);
+			result.put("elapsedMillis", elapsedMillis);
+			result.put("markersPerSecond", elapsedMillis == 0 ? 0 : markerCount * 1000 / elapsedMillis);
+			return result;
+		}
+	}
+
+	static private final Map<String /* database */, Map<Integer /* chunk size */, Aggregate>> aggregatesByDatabase = new ConcurrentHashMap<>();
+
+	public ExportMetrics(long totalMarkerCount, int chunkSize) {
+		this.totalMarkerCount = totalMarkerCount;
+		this.chunkSize = chunkSize;
+	}
+
+	public void addFetchTime(long nanos) {
+		fetchNanos.addAndGet(nanos);
+	}
+
+	public void addChunk(int nMarkerCount, long nCellCount, long nByteCount, long nFormatNanos) {
+		markerCount.addAndGet(nMarkerCount);
+		cellCount.addAndGet(nCellCount);
+		byteCount.addAndGet(nByteCount);
+		formatNanos.addAndGet(nFormatNanos);
+
+		long now = System.currentTimeMillis(), nElapsed = Math.max(1, now - lastChunkTime);
+		lastChunkTime = now;
+		double chunkRate = nMarkerCount * 1000d / nElapsed;
+		currentMarkersPerSecond = currentMarkersPerSecond == 0 ? chunkRate : RATE_SMOOTHING_FACTOR * chunkRate + (1 - RATE_SMOOTHING_FACTOR) * currentMarkersPerSecond;
+	}
+
+	/**
+	 * Accounts for markers that were handled before this instance was created (e.g. when resuming an export)
+	 */
+	public void skipMarkers(long nMarkerCount) {
+		skippedMarkerCount += nMarkerCount;
+	}
+
+	public void markAsEnded() {
+		endTime = System.currentTimeMillis();
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * @return the number of markers processed by this instance (excluding skipped ones)
+	 */
+	public long getMarkerCount() {
+		return markerCount.get();
+	}
+
+	public long getRemainingMarkerCount() {
+		return totalMarkerCount - skippedMarkerCount - markerCount.get();
+	}
+
+	public long getTotalMarkerCount() {
+		return totalMarkerCount;
+	}
+
+	public long getCellCount() {
+		return cellCount.get();
+	}
+
+	public long getByteCount() {
+		return byteCount.get();
+	}
+
+	public long getFetchMillis() {
+		return fetchNanos.get() / 1000000;
+	}
+
+	public long getFormatMillis() {
+		return formatNanos.get() / 1000000;
+	}
+
+	public long getElapsedMillis() {
+		return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+	}
+
+	public long getCurrentMarkersPerSecond() {
+		return Math.round(currentMarkersPerSecond);
+	}
+
+	/**
+	 * @return the estimated number of seconds left, or -1 if unknown
+	 */
+	public long getEtaSeconds() {
+		if (currentMarkersPerSecond == 0)
+			return -1;
+		return Math.round(getRemainingMarkerCount() / currentMarkersPerSecond);
+	}
+
+	static public void aggregate(String database, ExportMetrics metrics) {
+		aggregatesByDatabase.computeIfAbsent(database, db -> new ConcurrentHashMap<>()).computeIfAbsent(metrics.chunkSize, cs -> new Aggregate()).add(metrics);
+	}
+
+	/**
+	 * @return aggregated metrics of completed exports for the given database, by chunk size
+	 */
+	static public Map<Integer, Aggregate> getAggregates(String database) {
+		return new TreeMap<>(aggregatesByDatabase.getOrDefault(database, new ConcurrentHashMap<>()));
+	}
+}
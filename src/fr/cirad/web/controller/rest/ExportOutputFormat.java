@@ -0,0 +1,112 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * File formats supported by asynchronous alleleMatrix exports, along with the output sinks used to write them.
+ *
+ * @author sempere
+ */
+public enum ExportOutputFormat {
+
+	TSV(".tsv", "text/tab-separated-values", new String[] { "tsv", "text/tsv" }),
+	TSV_GZ(".tsv.gz", "application/gzip", new String[] { "tsv.gz", "text/tsv.gz" }),
+	TSV_BGZ(".tsv.bgz", "application/gzip", new String[] { "tsv.bgz", "tsv.bgzf", "text/tsv.bgz" });
+
+	static public final int WRITE_BUFFER_SIZE = 1024 * 1024;
+
+	private final String fileExtension;
+	private final String contentType;
+	private final String[] formatParameterValues;
+
+	private ExportOutputFormat(String fileExtension, String contentType, String[] formatParameterValues) {
+		this.fileExtension = fileExtension;
+		this.contentType = contentType;
+		this.formatParameterValues = formatParameterValues;
+	}
+
+	public String getFileExtension() {
+		return fileExtension;
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * @return the format matching the passed value of the alleleMatrix format parameter, or null if it does not refer to a file format
+	 */
+	static public ExportOutputFormat fromFormatParameter(String format) {
+		if (format != null)
+			for (ExportOutputFormat outputFormat : values())
+				for (String value : outputFormat.formatParameterValues)
+					if (value.equalsIgnoreCase(format.trim()))
+						return outputFormat;
+		return null;
+	}
+
+	/**
+	 * Wraps a raw stream with the compression required by this format
+	 *
+	 * @param fTerminated whether or not the stream is the last part of the file (if not, it will be closed without any end-of-file marker)
+	 */
+	public OutputStream wrap(OutputStream rawStream, boolean fTerminated) throws IOException {
+		switch (this) {
+			case TSV_GZ:
+				return new GZIPOutputStream(rawStream, 64 * 1024);	// concatenated gzip members form a valid gzip file
+			case TSV_BGZ:
+				return new BgzfOutputStream(rawStream, fTerminated);
+			default:
+				return rawStream;
+		}
+	}
+
+	/**
+	 * Opens a large-buffered sink for writing a file (or part of a file) in this format
+	 */
+	public OutputStream open(File file, boolean fTerminated) throws IOException {
+		return new BufferedOutputStream(wrap(new FileOutputStream(file), fTerminated), WRITE_BUFFER_SIZE);
+	}
+
+	/**
+	 * @return the passed text, UTF-8 encoded and compressed as a standalone, non-terminated part of a file in this format
+	 */
+	public byte[] encodePart(String text) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (OutputStream os = wrap(bos, false)) {
+			os.write(text.getBytes(StandardCharsets.UTF_8));
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * @return bytes to append after concatenated non-terminated parts
+	 */
+	public byte[] getTerminator() {
+		return this == TSV_BGZ ? BgzfOutputStream.EOF_BLOCK : new byte[0];
+	}
+}
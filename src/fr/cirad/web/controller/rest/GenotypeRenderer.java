@@ -0,0 +1,106 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+
+/**
+ * Turns genotype codes into their allele-matrix representation. Each distinct code is rendered only once per variant
+ * (in both its phased and unphased forms, as Strings and UTF-8 bytes), so that rendering a cell is a mere table lookup.
+ * Instances are not thread-safe: each writer thread shall use its own.
+ *
+ * @author sempere
+ */
+public class GenotypeRenderer {
+
+	private final String unknownGtCode;
+	private final byte[] unknownGtCodeBytes;
+	private final String unPhasedSeparator;
+	private final String phasedSeparator;
+	private final boolean fExpandHomozygotes;
+
+	private VariantData currentVariant = null;
+	private final HashMap<String /* genotype code */, RenderedGenotype> renderedGenotypes = new HashMap<>();
+
+	static private class RenderedGenotype {
+		private final String[] strings;	// unphased, phased
+		private final byte[][] bytes;	// unphased, phased
+
+		private RenderedGenotype(String unphased, String phased) {
+			strings = new String[] { unphased, phased };
+			byte[] unphasedBytes = unphased.getBytes(StandardCharsets.UTF_8);
+			bytes = new byte[][] { unphasedBytes, phased.equals(unphased) ? unphasedBytes : phased.getBytes(StandardCharsets.UTF_8) };
+		}
+	}
+
+	public GenotypeRenderer(String unknownGtCode, String unPhasedSeparator, String phasedSeparator, Boolean expandHomozygotes) {
+		this.unknownGtCode = unknownGtCode;
+		this.unknownGtCodeBytes = unknownGtCode.getBytes(StandardCharsets.UTF_8);
+		this.unPhasedSeparator = unPhasedSeparator;
+		this.phasedSeparator = phasedSeparator;
+		this.fExpandHomozygotes = Boolean.TRUE.equals(expandHomozygotes);
+	}
+
+	/**
+	 * Selects the variant subsequent genotype codes refer to, invalidating the table if it differs from the previous one
+	 */
+	public void setVariant(VariantData variant) {
+		if (variant != currentVariant) {
+			currentVariant = variant;
+			renderedGenotypes.clear();
+		}
+	}
+
+	public String render(String gtCode, boolean fPhased) {
+		if (gtCode == null || gtCode.length() == 0)
+			return unknownGtCode;
+		return getRenderedGenotype(gtCode).strings[fPhased ? 1 : 0];
+	}
+
+	/**
+	 * @return the UTF-8 encoded representation, to be written as is to an output buffer (callers must not modify it)
+	 */
+	public byte[] renderBytes(String gtCode, boolean fPhased) {
+		if (gtCode == null || gtCode.length() == 0)
+			return unknownGtCodeBytes;
+		return getRenderedGenotype(gtCode).bytes[fPhased ? 1 : 0];
+	}
+
+	private RenderedGenotype getRenderedGenotype(String gtCode) {
+		RenderedGenotype rendered = renderedGenotypes.get(gtCode);
+		if (rendered == null) {
+			rendered = buildRepresentations(currentVariant.getAllelesFromGenotypeCode(gtCode));
+			renderedGenotypes.put(gtCode, rendered);
+		}
+		return rendered;
+	}
+
+	private RenderedGenotype buildRepresentations(List<String> alleles) {
+		boolean fHomozygous = !alleles.isEmpty();
+		for (int i = 1; i < alleles.size() && fHomozygous; i++)
+			fHomozygous = alleles.get(i).equals(alleles.get(0));
+
+		if (!fExpandHomozygotes && fHomozygous)
+			return new RenderedGenotype(alleles.get(0), alleles.get(0));
+		return new RenderedGenotype(String.join(unPhasedSeparator, alleles), String.join(phasedSeparator, alleles));
+	}
+}
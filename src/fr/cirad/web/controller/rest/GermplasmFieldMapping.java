@@ -0,0 +1,122 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.text.CaseUtils;
+
+import fr.cirad.io.brapi.BrapiService;
+import fr.cirad.mgdb.model.mongo.maintypes.Individual;
+
+/**
+ * Compiled mapping between the additionalInfo keys found in a database's individuals and the BrAPI germplasm model.
+ * Each distinct key is resolved once (camel-casing and case-folding it to look up its BrAPI field, and checking whether
+ * it is a germplasm-level field or an attribute), so that serializing germplasm records only costs a lookup per key.
+ * Resolution does not depend on the data, so plans never need to be invalidated; they are kept per database so that
+ * the number of distinct keys each one holds stays bounded (MAX_KEY_COUNT, beyond which keys are resolved on the fly).
+ *
+ * @author sempere
+ */
+public class GermplasmFieldMapping {
+
+	static private final int MAX_KEY_COUNT = 10000;
+
+	static private class ResolvedKey {
+		private final String brapiField;	// null if the key does not map to a germplasm field
+		private final boolean fAttribute;
+
+		private ResolvedKey(String brapiField, boolean fAttribute) {
+			this.brapiField = brapiField;
+			this.fAttribute = fAttribute;
+		}
+	}
+
+	static private final Map<String /* database */, GermplasmFieldMapping> mappings = new ConcurrentHashMap<>();
+
+	private final Map<String, String> brapiFields;
+	private final Set<String> germplasmLevelFields;
+	private final Map<String /* additionalInfo key */, ResolvedKey> resolvedKeys = new ConcurrentHashMap<>();
+
+	private GermplasmFieldMapping(Map<String, String> brapiFields, Set<String> germplasmLevelFields) {
+		this.brapiFields = brapiFields;
+		this.germplasmLevelFields = germplasmLevelFields;
+	}
+
+	/**
+	 * @param brapiFields BrAPI germplasm field names indexed by their lower-case version
+	 * @param germplasmLevelFields fields that belong to germplasm records rather than to germplasm attributes
+	 * @return the mapping plan for the given database
+	 */
+	static public GermplasmFieldMapping get(String database, Map<String, String> brapiFields, Set<String> germplasmLevelFields) {
+		GermplasmFieldMapping mapping = mappings.get(database);
+		if (mapping == null || mapping.brapiFields != brapiFields || mapping.germplasmLevelFields != germplasmLevelFields) {
+			mapping = new GermplasmFieldMapping(brapiFields, germplasmLevelFields);
+			mappings.put(database, mapping);
+		}
+		return mapping;
+	}
+
+	private ResolvedKey resolve(String key) {
+		ResolvedKey resolvedKey = resolvedKeys.get(key);
+		if (resolvedKey == null) {
+			resolvedKey = new ResolvedKey(brapiFields.get(CaseUtils.toCamelCase(key, false, '_', '-', '.').toLowerCase()), !germplasmLevelFields.contains(key) && !BrapiService.BRAPI_FIELD_extGermplasmDbId.equals(key));
+			if (resolvedKeys.size() < MAX_KEY_COUNT)
+				resolvedKeys.put(key, resolvedKey);
+		}
+		return resolvedKey;
+	}
+
+	/**
+	 * @return the BrAPI germplasm record for the given individual
+	 */
+	public Map<String, Object> toGermplasm(Individual ind) {
+		Map<String, Object> germplasm = new TreeMap<>();
+		germplasm.put(BrapiService.BRAPI_FIELD_germplasmDbId, ind.getId());
+		germplasm.put("germplasmName", ind.getId());
+		if (ind.getAdditionalInfo() != null)
+			for (Map.Entry<String, Object> info : ind.getAdditionalInfo().entrySet()) {
+				String brapiField = resolve(info.getKey()).brapiField;
+				if (brapiField != null)
+					germplasm.put(brapiField, info.getValue());
+			}
+		return germplasm;
+	}
+
+	/**
+	 * @return the given individual's germplasm attributes, i.e. additionalInfo entries that are not germplasm-level fields
+	 */
+	public List<Map<String, Object>> toAttributes(Individual ind) {
+		List<Map<String, Object>> attributes = new ArrayList<>();
+		if (ind.getAdditionalInfo() != null)
+			for (Map.Entry<String, Object> info : ind.getAdditionalInfo().entrySet())
+				if (resolve(info.getKey()).fAttribute) {
+					Map<String, Object> attribute = new HashMap<>();
+					attribute.put("attributeDbId", info.getKey());
+					attribute.put("value", info.getValue());
+					attributes.add(attribute);
+				}
+		return attributes;
+	}
+}
@@ -0,0 +1,170 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongo.maintypes.Individual;
+
+/**
+ * In-memory store of germplasm search results, i.e. the IDs of matching individuals sorted as in result pages. IDs
+ * start being resolved in the background as soon as a search is submitted, so that fetching its result pages only
+ * requires slicing the list. Entries expire after ttlMillis, are only valid for the data version they were resolved
+ * with (see DatabaseVersionTracker), and the least recently used ones are evicted once the total number of stored IDs
+ * exceeds maxIdCount. Callers are expected to re-run the search when no valid entry is found.
+ *
+ * @author sempere
+ */
+public class GermplasmSearchResultStore {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(GermplasmSearchResultStore.class);
+
+	static private class Entry {
+		private final String database;
+		private final String versionStamp;
+		private final long createdAt = System.currentTimeMillis();
+		private final CompletableFuture<List<String>> ids;
+		private int idCount = 0;	// only set once resolved, as it counts towards maxIdCount
+
+		private Entry(String database, String versionStamp, CompletableFuture<List<String>> ids) {
+			this.database = database;
+			this.versionStamp = versionStamp;
+			this.ids = ids;
+		}
+	}
+
+	private final long maxIdCount;
+	private final long ttlMillis;
+	private final Map<String /* searchResultsDbId */, Entry> entries = new LinkedHashMap<>(16, .75f, true);
+	private final ExecutorService resolutionExecutor;
+	private long storedIdCount = 0;
+
+	public GermplasmSearchResultStore(long maxIdCount, long ttlMillis, int nThreadCount) {
+		this.maxIdCount = maxIdCount;
+		this.ttlMillis = ttlMillis;
+		resolutionExecutor = Executors.newFixedThreadPool(nThreadCount, r -> {
+			Thread t = new Thread(r, "germplasmSearchResolver");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	/**
+	 * Launches the resolution of a search's matching individual IDs
+	 *
+	 * @param crits criteria on the Individual collection, or null if the search cannot match anything
+	 */
+	public void submit(String searchResultsDbId, String database, MongoTemplate mongoTemplate, List<Criteria> crits) {
+		final List<Criteria> searchCrits = crits == null ? null : new ArrayList<>(crits);
+		Entry entry = new Entry(database, DatabaseVersionTracker.getVersionStamp(database), crits == null ? CompletableFuture.completedFuture(new ArrayList<>()) : CompletableFuture.supplyAsync(() -> {
+			Document filter = searchCrits.isEmpty() ? new Document() : new Query(new Criteria().andOperator(searchCrits.toArray(new Criteria[searchCrits.size()]))).getQueryObject();
+			List<String> ids = new ArrayList<>();
+			try (MongoCursor<Document> cursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(Individual.class)).find(filter).projection(new Document("_id", 1)).sort(new Document("_id", 1)).iterator()) {
+				while (cursor.hasNext())
+					ids.add(cursor.next().get("_id").toString());
+			}
+			return ids;
+		}, resolutionExecutor));
+
+		synchronized (entries) {
+			removeExpired();
+			entries.put(searchResultsDbId, entry);
+		}
+		entry.ids.whenComplete((ids, t) -> {
+			synchronized (entries) {
+				if (t != null || entries.get(searchResultsDbId) != entry) {
+					entries.remove(searchResultsDbId, entry);
+					if (t != null)
+						LOG.debug("Unable to resolve germplasm search " + searchResultsDbId + ": " + t);
+					return;
+				}
+				entry.idCount = ids.size();
+				storedIdCount += entry.idCount;
+				Iterator<Entry> it = entries.values().iterator();
+				while (storedIdCount > maxIdCount && it.hasNext()) {	// least recently used first
+					Entry eldest = it.next();
+					if (eldest.ids.isDone()) {
+						storedIdCount -= eldest.idCount;
+						it.remove();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Waits until the given deadline for a search's matching IDs
+	 *
+	 * @param deadline time (as returned by System.currentTimeMillis) until which to wait
+	 * @return the sorted IDs of individuals matching the search, or null if they are not available (in which case the search needs to be re-run)
+	 */
+	public List<String> get(String searchResultsDbId, String database, long deadline) {
+		Entry entry;
+		synchronized (entries) {
+			removeExpired();
+			entry = entries.get(searchResultsDbId);
+		}
+		if (entry == null || !entry.database.equals(database) || !entry.versionStamp.equals(DatabaseVersionTracker.getVersionStamp(database)))
+			return null;
+
+		try {
+			return entry.ids.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException | ExecutionException e) {
+			return null;
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private void removeExpired() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry entry = it.next();
+			if (now - entry.createdAt > ttlMillis) {
+				storedIdCount -= entry.idCount;
+				it.remove();
+			}
+		}
+	}
+
+	public void shutdown() {
+		resolutionExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,136 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread-safe cache of keyset-pagination boundaries: for a given database and filter, it remembers the sort key of
+ * the item found at a given index, so that the following page may be queried with a range condition instead of skip().
+ * Boundaries are keyed by item index (not page number), so that requests with different page sizes share them, and
+ * the nearest cached boundary before a given index may be looked up to resume a walk from there.
+ * Boundaries are also keyed by the database's version stamp, so that they are no longer used once data has changed.
+ * Entries expire lazily after a fixed delay, and the oldest ones are evicted when the cache exceeds its capacity.
+ *
+ * @author sempere
+ */
+public class KeysetCursorCache {
+
+	static private class Boundary {
+		private final Comparable sortKey;
+		private final long expiresAt;
+
+		private Boundary(Comparable sortKey, long expiresAt) {
+			this.sortKey = sortKey;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final Map<String /* database + version stamp + filter */, ConcurrentNavigableMap<Integer /* item index */, Boundary>> boundaries = new ConcurrentHashMap<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final int maxSize;
+	private final long ttlMillis;
+
+	public KeysetCursorCache(int maxSize, long ttlMillis) {
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+	}
+
+	static private String getQueryKey(String database, String filterKey) {
+		return database + "\n" + DatabaseVersionTracker.getVersionStamp(database) + "\n" + filterKey;
+	}
+
+	/**
+	 * @return the sort key of the item at the given index, or null if not cached
+	 */
+	public Comparable get(String database, String filterKey, int nIndex) {
+		ConcurrentNavigableMap<Integer, Boundary> queryBoundaries = boundaries.get(getQueryKey(database, filterKey));
+		Boundary boundary = queryBoundaries == null ? null : queryBoundaries.get(nIndex);
+		if (boundary == null)
+			return null;
+		if (boundary.expiresAt < System.currentTimeMillis()) {
+			if (queryBoundaries.remove(nIndex, boundary))
+				size.decrementAndGet();
+			return null;
+		}
+		return boundary.sortKey;
+	}
+
+	/**
+	 * @return the cached boundary with the highest index lower than or equal to nIndex, or null if none
+	 */
+	public Map.Entry<Integer, Comparable> floor(String database, String filterKey, int nIndex) {
+		ConcurrentNavigableMap<Integer, Boundary> queryBoundaries = boundaries.get(getQueryKey(database, filterKey));
+		if (queryBoundaries == null)
+			return null;
+
+		long now = System.currentTimeMillis();
+		for (Map.Entry<Integer, Boundary> entry : queryBoundaries.headMap(nIndex, true).descendingMap().entrySet())
+			if (entry.getValue().expiresAt >= now)
+				return Map.entry(entry.getKey(), entry.getValue().sortKey);
+		return null;
+	}
+
+	public void put(String database, String filterKey, int nIndex, Comparable sortKey) {
+		if (boundaries.computeIfAbsent(getQueryKey(database, filterKey), k -> new ConcurrentSkipListMap<>()).put(nIndex, new Boundary(sortKey, System.currentTimeMillis() + ttlMillis)) == null && size.incrementAndGet() > maxSize)
+			evict();
+	}
+
+	/**
+	 * Drops expired entries, then the ones closest to expiration if the cache is still too large
+	 */
+	synchronized private void evict() {
+		long now = System.currentTimeMillis(), nOldestKept = Long.MAX_VALUE;
+		for (Iterator<ConcurrentNavigableMap<Integer, Boundary>> queryIt = boundaries.values().iterator(); queryIt.hasNext(); ) {
+			ConcurrentNavigableMap<Integer, Boundary> queryBoundaries = queryIt.next();
+			for (Iterator<Boundary> it = queryBoundaries.values().iterator(); it.hasNext(); ) {
+				Boundary boundary = it.next();
+				if (boundary.expiresAt < now) {
+					it.remove();
+					size.decrementAndGet();
+				}
+				else
+					nOldestKept = Math.min(nOldestKept, boundary.expiresAt);
+			}
+			if (queryBoundaries.isEmpty())
+				queryIt.remove();
+		}
+
+		while (size.get() > maxSize * 9 / 10) {	// leave some headroom so that we don't evict on every put
+			long nThreshold = nOldestKept + ttlMillis / 10;
+			nOldestKept = Long.MAX_VALUE;
+			for (ConcurrentNavigableMap<Integer, Boundary> queryBoundaries : boundaries.values())
+				for (Iterator<Boundary> it = queryBoundaries.values().iterator(); it.hasNext(); ) {
+					Boundary boundary = it.next();
+					if (boundary.expiresAt < nThreshold) {
+						it.remove();
+						size.decrementAndGet();
+					}
+					else
+						nOldestKept = Math.min(nOldestKept, boundary.expiresAt);
+				}
+			if (nOldestKept == Long.MAX_VALUE)
+				break;
+		}
+	}
+}
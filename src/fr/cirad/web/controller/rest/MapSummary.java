@@ -0,0 +1,134 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * Per-linkage-group marker statistics (count, min and max position) for a database's default assembly, computed in a
+ * single aggregation pass and kept until the database's version stamp changes.
+ *
+ * @author sempere
+ */
+public class MapSummary {
+
+	static private final VersionedCache<MapSummary> summaries = new VersionedCache<>("map summary", MapSummary::build, MapSummary::getVersionStamp);
+
+	static public class LinkageGroupStats {
+		private final String name;
+		private final long markerCount;
+		private final Long minPosition;
+		private final Long maxPosition;
+
+		private LinkageGroupStats(String name, long markerCount, Long minPosition, Long maxPosition) {
+			this.name = name;
+			this.markerCount = markerCount;
+			this.minPosition = minPosition;
+			this.maxPosition = maxPosition;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getMarkerCount() {
+			return markerCount;
+		}
+
+		public Long getMinPosition() {
+			return minPosition;
+		}
+
+		public Long getMaxPosition() {
+			return maxPosition;
+		}
+	}
+
+	private final String versionStamp;
+	private final List<LinkageGroupStats> linkageGroups;
+
+	private MapSummary(String versionStamp, List<LinkageGroupStats> linkageGroups) {
+		this.versionStamp = versionStamp;
+		this.linkageGroups = linkageGroups;
+	}
+
+	/**
+	 * @return the current summary for the given database (see VersionedCache.get), or null if the database does not exist
+	 */
+	static public MapSummary get(String database) {
+		return summaries.get(database);
+	}
+
+	/**
+	 * @return the summary built for the database's current version stamp, building it synchronously if needed, or null if the database does not exist
+	 */
+	static public MapSummary getUpToDate(String database) {
+		return summaries.getUpToDate(database);
+	}
+
+	static private MapSummary build(String database) {
+		DatabaseMetadataSnapshot metadata = DatabaseMetadataSnapshot.getUpToDate(database);	// contigs and assembly must match the data being summarized
+		return metadata == null ? null : new MapSummary(metadata.getVersionStamp(), computeLinkageGroupStats(MongoTemplateManager.get(database), metadata));
+	}
+
+	static private List<LinkageGroupStats> computeLinkageGroupStats(MongoTemplate mongoTemplate, DatabaseMetadataSnapshot metadata) {
+		String sequencePath = metadata.getRefPosPath() + "." + ReferencePosition.FIELDNAME_SEQUENCE;
+		String startSitePath = "$" + metadata.getRefPosPath() + "." + ReferencePosition.FIELDNAME_START_SITE;
+		List<Document> pipeline = new ArrayList<Document>();
+		pipeline.add(new Document("$match", new Document(sequencePath, new Document("$in", metadata.getContigs()))));
+		Document groupObject = new Document("_id", "$" + sequencePath);
+		groupObject.put("count", new Document("$sum", 1));
+		groupObject.put("min", new Document("$min", startSitePath));
+		groupObject.put("max", new Document("$max", startSitePath));
+		pipeline.add(new Document("$group", groupObject));
+
+		List<LinkageGroupStats> linkageGroups = new ArrayList<>();
+		try (MongoCursor<Document> it = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).aggregate(pipeline).allowDiskUse(true).iterator()) {
+			while (it.hasNext()) {
+				Document obj = it.next();
+				Number min = (Number) obj.get("min"), max = (Number) obj.get("max");
+				linkageGroups.add(new LinkageGroupStats(obj.getString("_id"), ((Number) obj.get("count")).longValue(), min == null ? null : min.longValue(), max == null ? null : max.longValue()));
+			}
+		}
+		linkageGroups.sort(Comparator.comparing(LinkageGroupStats::getName));
+		return Collections.unmodifiableList(linkageGroups);
+	}
+
+	String getVersionStamp() {
+		return versionStamp;
+	}
+
+	/**
+	 * @return statistics for each linkage group holding markers, sorted by name
+	 */
+	public List<LinkageGroupStats> getLinkageGroups() {
+		return linkageGroups;
+	}
+}
@@ -0,0 +1,169 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * Multi-resolution marker-density histogram for a database's default assembly, built in a single scan of marker
+ * positions and kept until the database's version stamp changes. Counts are held per linkage group and marker type at
+ * BASE_BIN_SIZE resolution, plus coarser levels each LEVEL_FACTOR times wider, so that any bin size that is a multiple
+ * of BASE_BIN_SIZE is served by summing few precomputed bins.
+ *
+ * @author sempere
+ */
+public class MarkerDensityIndex {
+
+	static public final int BASE_BIN_SIZE = 10000;
+	static private final int LEVEL_FACTOR = 10;
+
+	static private final VersionedCache<MarkerDensityIndex> indexes = new VersionedCache<>("marker density index", MarkerDensityIndex::build, index -> index.versionStamp);
+
+	private final String versionStamp;
+	private final Map<String /* linkage group */, int[][] /* level -> bin -> count */> allTypeCounts;
+	private final Map<String /* marker type */, Map<String /* linkage group */, int[][]>> countsByType;
+
+	private MarkerDensityIndex(String versionStamp, Map<String, int[][]> allTypeCounts, Map<String, Map<String, int[][]>> countsByType) {
+		this.versionStamp = versionStamp;
+		this.allTypeCounts = allTypeCounts;
+		this.countsByType = countsByType;
+	}
+
+	/**
+	 * @return the current index for the given database (see VersionedCache.get), or null if the database does not exist
+	 */
+	static public MarkerDensityIndex get(String database) {
+		return indexes.get(database);
+	}
+
+	static private MarkerDensityIndex build(String database) {
+		DatabaseMetadataSnapshot metadata = DatabaseMetadataSnapshot.getUpToDate(database);
+		MapSummary mapSummary = MapSummary.getUpToDate(database);
+		if (metadata == null || mapSummary == null)
+			return null;
+		String versionStamp = mapSummary.getVersionStamp().equals(metadata.getVersionStamp()) ? metadata.getVersionStamp() : null;	// data changed in the meantime: the index must not be reused
+		return build(MongoTemplateManager.get(database), metadata, mapSummary, versionStamp);
+	}
+
+	static private MarkerDensityIndex build(MongoTemplate mongoTemplate, DatabaseMetadataSnapshot metadata, MapSummary mapSummary, String versionStamp) {
+		Map<String, Integer> binCounts = new HashMap<>();	// base-level bin count for each linkage group, sized according to its max position
+		for (MapSummary.LinkageGroupStats stats : mapSummary.getLinkageGroups())
+			if (stats.getMaxPosition() != null)
+				binCounts.put(stats.getName(), (int) (stats.getMaxPosition() / BASE_BIN_SIZE) + 1);
+
+		Map<String, int[]> allTypeBaseCounts = new HashMap<>();
+		Map<String, Map<String, int[]>> baseCountsByType = new HashMap<>();
+		String sequencePath = metadata.getRefPosPath() + "." + ReferencePosition.FIELDNAME_SEQUENCE, startSitePath = metadata.getRefPosPath() + "." + ReferencePosition.FIELDNAME_START_SITE;
+		Document projectObject = new Document(sequencePath, 1);
+		projectObject.put(startSitePath, 1);
+		projectObject.put(VariantData.FIELDNAME_TYPE, 1);
+		projectObject.put("_id", 0);
+		try (MongoCursor<Document> markerCursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find(new Document(sequencePath, new Document("$in", binCounts.keySet()))).projection(projectObject).iterator()) {
+			while (markerCursor.hasNext()) {
+				Document marker = markerCursor.next();
+				Document refPos = (Document) marker.get(metadata.getRefPosPath());
+				Number position = refPos == null ? null : (Number) refPos.get(ReferencePosition.FIELDNAME_START_SITE);
+				String sequence = refPos == null ? null : refPos.getString(ReferencePosition.FIELDNAME_SEQUENCE);
+				Integer nBinCount = sequence == null ? null : binCounts.get(sequence);
+				if (position == null || nBinCount == null)
+					continue;
+
+				int nBin = (int) Math.min(nBinCount - 1, Math.max(0, position.longValue() / BASE_BIN_SIZE));	// guards against data modified since the summary was computed
+				allTypeBaseCounts.computeIfAbsent(sequence, s -> new int[nBinCount])[nBin]++;
+				String type = marker.getString(VariantData.FIELDNAME_TYPE);
+				if (type != null)
+					baseCountsByType.computeIfAbsent(type, t -> new HashMap<>()).computeIfAbsent(sequence, s -> new int[nBinCount])[nBin]++;
+			}
+		}
+
+		Map<String, Map<String, int[][]>> countsByType = new HashMap<>();
+		for (Map.Entry<String, Map<String, int[]>> typeEntry : baseCountsByType.entrySet())
+			countsByType.put(typeEntry.getKey(), buildLevels(typeEntry.getValue()));
+		return new MarkerDensityIndex(versionStamp, buildLevels(allTypeBaseCounts), countsByType);
+	}
+
+	/**
+	 * Derives coarser levels from base-level counts, each level's bins being LEVEL_FACTOR times wider than the previous one's
+	 */
+	static private Map<String, int[][]> buildLevels(Map<String, int[]> baseCounts) {
+		Map<String, int[][]> result = new HashMap<>();
+		for (Map.Entry<String, int[]> entry : baseCounts.entrySet()) {
+			int nLevelCount = 1;
+			for (long nBins = entry.getValue().length; nBins > 1; nBins = (nBins + LEVEL_FACTOR - 1) / LEVEL_FACTOR)
+				nLevelCount++;
+			int[][] levels = new int[nLevelCount][];
+			levels[0] = entry.getValue();
+			for (int i = 1; i < nLevelCount; i++)
+				levels[i] = sumBins(levels[i - 1], LEVEL_FACTOR);
+			result.put(entry.getKey(), levels);
+		}
+		return result;
+	}
+
+	static private int[] sumBins(int[] counts, int nFactor) {
+		int[] result = new int[(counts.length + nFactor - 1) / nFactor];
+		for (int i = 0; i < counts.length; i++)
+			result[i / nFactor] += counts[i];
+		return result;
+	}
+
+	/**
+	 * @return the bin size actually used when asking for the given one, i.e. the nearest multiple of BASE_BIN_SIZE
+	 */
+	static public int normalizeBinSize(int nBinSize) {
+		return (int) Math.max(1, Math.round((double) nBinSize / BASE_BIN_SIZE)) * BASE_BIN_SIZE;
+	}
+
+	/**
+	 * @param markerType marker type to count, or null for all types
+	 * @param nBinSize bin width in base pairs, which must be a multiple of BASE_BIN_SIZE (see normalizeBinSize)
+	 * @return marker counts for consecutive bins of the given linkage group starting at position 0, or null if it has no (such) markers
+	 */
+	public int[] getCounts(String linkageGroup, String markerType, int nBinSize) {
+		Map<String, int[][]> counts = markerType == null ? allTypeCounts : countsByType.get(markerType);
+		int[][] levels = counts == null ? null : counts.get(linkageGroup);
+		if (levels == null)
+			return null;
+
+		int nLevel = 0, nLevelBinSize = BASE_BIN_SIZE;	// use the coarsest level whose bin size divides the requested one
+		while (nLevel + 1 < levels.length && nBinSize % ((long) nLevelBinSize * LEVEL_FACTOR) == 0) {
+			nLevel++;
+			nLevelBinSize *= LEVEL_FACTOR;
+		}
+		return nLevelBinSize == nBinSize ? Arrays.copyOf(levels[nLevel], levels[nLevel].length) : sumBins(levels[nLevel], nBinSize / nLevelBinSize);
+	}
+
+	/**
+	 * @return the marker types encountered while building the index
+	 */
+	public Set<String> getMarkerTypes() {
+		return countsByType.keySet();
+	}
+}
@@ -0,0 +1,152 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.mgdb.model.mongodao.MgdbDao;
+
+/**
+ * Per-database LRU cache of ready-to-serialize marker details objects, as returned by the markerDetails calls. Cache
+ * misses are fetched together with a single projected $in query. A database's entries are dropped once its version
+ * stamp changes (see DatabaseVersionTracker).
+ *
+ * @author sempere
+ */
+public class MarkerDetailsCache {
+
+	static private class DatabaseCache {
+		private final String versionStamp;
+		private final LinkedHashMap<String /* markerDbId */, Map<String, Object>> markers;
+
+		private DatabaseCache(String versionStamp, final int maxSize) {
+			this.versionStamp = versionStamp;
+			markers = new LinkedHashMap<String, Map<String, Object>>(16, .75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Map<String, Object>> eldest) {
+					return size() > maxSize;
+				}
+			};
+		}
+	}
+
+	private final int maxSizePerDatabase;
+	private final Map<String /* database */, DatabaseCache> caches = new ConcurrentHashMap<>();
+	private final AtomicLong hitCount = new AtomicLong(), missCount = new AtomicLong();
+
+	public MarkerDetailsCache(int maxSizePerDatabase) {
+		this.maxSizePerDatabase = maxSizePerDatabase;
+	}
+
+	private DatabaseCache getDatabaseCache(String database) {
+		String versionStamp = DatabaseVersionTracker.getVersionStamp(database);
+		return caches.compute(database, (db, cache) -> cache != null && cache.versionStamp != null && cache.versionStamp.equals(versionStamp) ? cache : new DatabaseCache(versionStamp, maxSizePerDatabase));
+	}
+
+	/**
+	 * @return details objects for those of the passed markers that exist, in the order they were passed (duplicates being ignored)
+	 */
+	public List<Map<String, Object>> get(String database, MongoTemplate mongoTemplate, Collection<String> markerDbIds) {
+		DatabaseCache cache = getDatabaseCache(database);
+		LinkedHashSet<String> distinctIDs = new LinkedHashSet<>(markerDbIds);
+		Map<String, Map<String, Object>> found = new HashMap<>();
+		List<String> missingIDs = new ArrayList<>();
+		synchronized (cache.markers) {
+			for (String markerDbId : distinctIDs) {
+				Map<String, Object> markerDTO = cache.markers.get(markerDbId);
+				if (markerDTO != null)
+					found.put(markerDbId, markerDTO);
+				else
+					missingIDs.add(markerDbId);
+			}
+		}
+		hitCount.addAndGet(found.size());
+		missCount.addAndGet(missingIDs.size());
+
+		if (!missingIDs.isEmpty()) {
+			Document projectObject = new Document(VariantData.FIELDNAME_TYPE, 1);
+			projectObject.put(VariantData.FIELDNAME_KNOWN_ALLELES, 1);
+			projectObject.put(VariantData.FIELDNAME_SYNONYMS, 1);
+			Map<String, Map<String, Object>> fetched = new HashMap<>();
+			try (MongoCursor<Document> markerCursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find(new Document("_id", new Document("$in", missingIDs))).projection(projectObject).iterator()) {
+				while (markerCursor.hasNext()) {
+					Document dbVariant = markerCursor.next();
+					fetched.put(dbVariant.get("_id").toString(), buildMarkerDTO(dbVariant));
+				}
+			}
+			synchronized (cache.markers) {
+				cache.markers.putAll(fetched);
+			}
+			found.putAll(fetched);
+		}
+
+		List<Map<String, Object>> result = new ArrayList<>();
+		for (String markerDbId : distinctIDs) {
+			Map<String, Object> markerDTO = found.get(markerDbId);
+			if (markerDTO != null)
+				result.add(markerDTO);
+		}
+		return result;
+	}
+
+	static private Map<String, Object> buildMarkerDTO(Document dbVariant) {
+		String markerDbId = dbVariant.get("_id").toString();
+		HashMap<String, Object> variantDTO = new HashMap<>();
+		variantDTO.put("markerDbId", markerDbId);
+		variantDTO.put("type", dbVariant.get(VariantData.FIELDNAME_TYPE));
+		variantDTO.put("refAlt", dbVariant.get(VariantData.FIELDNAME_KNOWN_ALLELES));
+		String defaultDisplayName = MgdbDao.idLooksGenerated(markerDbId) ? null : markerDbId; // we don't invent names for ObjectIDs since we would not able to apply a filter on them
+		variantDTO.put("defaultDisplayName", defaultDisplayName);
+		variantDTO.put("analysisMethods", null);
+		HashSet<String> synonymsObject = new HashSet<String>();
+		Document synonyms = (Document) dbVariant.get(VariantData.FIELDNAME_SYNONYMS);
+		if (synonyms != null) {
+			for (String synType : synonyms.keySet()) {
+				for (Object synForType : (Collection<Object>) synonyms.get(synType)) {
+					synonymsObject.add(synForType.toString());
+				}
+			}
+		}
+		variantDTO.put("synonyms", Collections.unmodifiableSet(synonymsObject));
+		return Collections.unmodifiableMap(variantDTO);	// shared between requests
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+}
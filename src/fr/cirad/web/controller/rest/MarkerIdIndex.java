@@ -0,0 +1,203 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.tools.Helper;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * Compact, read-only list of a database's marker IDs sorted by _id, giving O(1) access by ordinal and O(log n) rank
+ * lookups. IDs are stored as concatenated UTF-8 bytes plus an offset array, which takes a fraction of the memory an
+ * equivalent List<String> would. Instances are built lazily and rebuilt once the database's version stamp changes.
+ *
+ * @author sempere
+ */
+public class MarkerIdIndex {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(MarkerIdIndex.class);
+
+	static private final VersionedCache<MarkerIdIndex> indexes = new VersionedCache<>("marker ID index", MarkerIdIndex::build, MarkerIdIndex::getVersionStamp);
+
+	private final String versionStamp;
+	private final byte[] idBytes;
+	private final int[] offsets;	// offsets[i] is where the i-th ID starts in idBytes, offsets[size] is the total length
+	private final int size;
+	private final List<String> listView;
+
+	private MarkerIdIndex(String versionStamp, byte[] idBytes, int[] offsets, int size) {
+		this.versionStamp = versionStamp;
+		this.idBytes = idBytes;
+		this.offsets = offsets;
+		this.size = size;
+		listView = new IdList();
+	}
+
+	private class IdList extends AbstractList<String> implements RandomAccess {
+		@Override
+		public String get(int ordinal) {
+			return MarkerIdIndex.this.get(ordinal);
+		}
+
+		@Override
+		public int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * @return the current index for the given database (see VersionedCache.get), or null if the database does not exist
+	 */
+	static public MarkerIdIndex get(String database) {
+		return indexes.get(database);
+	}
+
+	/**
+	 * @return the index built for the database's current version stamp, building it synchronously if needed, or null if the database does not exist
+	 */
+	static public MarkerIdIndex getUpToDate(String database) {
+		return indexes.getUpToDate(database);
+	}
+
+	static private MarkerIdIndex build(String database) {
+		String versionStamp = DatabaseVersionTracker.getVersionStamp(database);	// read before scanning so that concurrent changes are not overlooked
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+		if (versionStamp == null || mongoTemplate == null)
+			return null;
+
+		int nCapacity = (int) Math.max(16, Helper.estimDocCount(mongoTemplate, VariantData.class) + 1);
+		int[] offsets = new int[nCapacity + 1];
+		byte[] idBytes = new byte[nCapacity * 16];
+		int nSize = 0, nByteCount = 0;
+
+		try (MongoCursor<Document> markerCursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find(new Document()).projection(new Document("_id", 1)).sort(new Document("_id", 1)).iterator()) {
+			while (markerCursor.hasNext()) {
+				byte[] id = markerCursor.next().get("_id").toString().getBytes(StandardCharsets.UTF_8);
+				if (nSize + 1 >= offsets.length)
+					offsets = Arrays.copyOf(offsets, offsets.length + (offsets.length >> 1));
+				if (nByteCount + id.length > idBytes.length)
+					idBytes = Arrays.copyOf(idBytes, Math.max(nByteCount + id.length, idBytes.length + (idBytes.length >> 1)));
+				System.arraycopy(id, 0, idBytes, nByteCount, id.length);
+				offsets[nSize++] = nByteCount;
+				nByteCount += id.length;
+			}
+		}
+		offsets[nSize] = nByteCount;
+		LOG.debug("Marker ID index for " + database + " holds " + nSize + " markers (" + nByteCount + " bytes)");
+		return new MarkerIdIndex(versionStamp, Arrays.copyOf(idBytes, nByteCount), Arrays.copyOf(offsets, nSize + 1), nSize);
+	}
+
+	/**
+	 * Drops the given database's index (it will be rebuilt when next needed)
+	 */
+	static public void invalidate(String database) {
+		indexes.invalidate(database);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	String getVersionStamp() {
+		return versionStamp;
+	}
+
+	public String get(int ordinal) {
+		return new String(idBytes, offsets[ordinal], offsets[ordinal + 1] - offsets[ordinal], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return an unmodifiable List view of the index, whose subList method may be used for slicing
+	 */
+	public List<String> asList() {
+		return listView;
+	}
+
+	/**
+	 * @return the ordinal of the given marker ID, or -(insertion point) - 1 if it is not in the index (same contract as Arrays.binarySearch)
+	 */
+	public int rank(String markerId) {
+		byte[] key = markerId.getBytes(StandardCharsets.UTF_8);
+		int nLow = 0, nHigh = size - 1;
+		while (nLow <= nHigh) {
+			int nMid = (nLow + nHigh) >>> 1;
+			int cmp = compare(nMid, key);
+			if (cmp < 0)
+				nLow = nMid + 1;
+			else if (cmp > 0)
+				nHigh = nMid - 1;
+			else
+				return nMid;
+		}
+		return -(nLow + 1);
+	}
+
+	/**
+	 * @return the range of ordinals (from inclusive, to exclusive) of IDs starting with the given prefix
+	 */
+	public int[] getPrefixRange(String prefix) {
+		byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+		int nFrom = rank(prefix);
+		if (nFrom < 0)
+			nFrom = -nFrom - 1;
+		int nLow = nFrom, nHigh = size;	// find the first ID beyond the prefix
+		while (nLow < nHigh) {
+			int nMid = (nLow + nHigh) >>> 1;
+			if (compare(nMid, key, key.length) <= 0)
+				nLow = nMid + 1;
+			else
+				nHigh = nMid;
+		}
+		return new int[] { nFrom, nLow };
+	}
+
+	/**
+	 * Compares the ID at the given ordinal with the passed UTF-8 bytes, in unsigned byte order (i.e. MongoDB's default string order)
+	 */
+	private int compare(int ordinal, byte[] key) {
+		return compare(ordinal, key, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Same as compare(int, byte[]), only looking at the first nMaxLength bytes of the ID
+	 */
+	private int compare(int ordinal, byte[] key, int nMaxLength) {
+		int nStart = offsets[ordinal], nLength = Math.min(nMaxLength, offsets[ordinal + 1] - nStart);
+		int nCommonLength = Math.min(nLength, key.length);
+		for (int i = 0; i < nCommonLength; i++) {
+			int diff = (idBytes[nStart + i] & 0xff) - (key[i] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return nLength - key.length;
+	}
+}
@@ -0,0 +1,349 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * Resolves marker names (IDs or synonyms) and name patterns, as supported by the markers call's match methods, to the
+ * exact list of matching markers, in memory, so that markers may then be fetched by _id instead of having MongoDB
+ * evaluate regular expressions against the whole collection. IDs and synonyms are each held in a dictionary sorted in
+ * unsigned UTF-8 byte order, along with a lowercase mirror. Patterns starting with a literal prefix only look at the
+ * entries sharing it (found by binary search); others are evaluated by a parallel scan, case-insensitive substrings
+ * being searched for in the lowercase mirror. Indexes are rebuilt along with the MarkerIdIndex, i.e. once the
+ * database's version stamp changes.
+ *
+ * @author sempere
+ */
+public class MarkerNameIndex {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(MarkerNameIndex.class);
+
+	static private final String REGEX_METACHARACTERS = "\\.[]{}()*+?^$|";
+
+	static private final VersionedCache<MarkerNameIndex> indexes = new VersionedCache<>("marker name index", MarkerNameIndex::build, index -> index.markerIdIndex.getVersionStamp());
+
+	/**
+	 * Sorted list of names, each pointing to a marker ordinal in the MarkerIdIndex
+	 */
+	static private abstract class Dictionary {
+		private byte[] lowerCaseBytes;
+		private int[] lowerCaseOffsets;
+
+		abstract int size();
+
+		abstract String get(int i);
+
+		abstract int getMarkerOrdinal(int i);
+
+		/**
+		 * @return the range of entries (from inclusive, to exclusive) starting with the given prefix
+		 */
+		abstract int[] getPrefixRange(String prefix);
+
+		void buildLowerCaseMirror() {
+			int[] offsets = new int[size() + 1];
+			byte[] bytes = new byte[size() * 16];
+			int nByteCount = 0;
+			for (int i = 0; i < size(); i++) {
+				byte[] lowerCaseName = get(i).toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+				if (nByteCount + lowerCaseName.length > bytes.length)
+					bytes = Arrays.copyOf(bytes, Math.max(nByteCount + lowerCaseName.length, bytes.length + (bytes.length >> 1)));
+				System.arraycopy(lowerCaseName, 0, bytes, nByteCount, lowerCaseName.length);
+				offsets[i] = nByteCount;
+				nByteCount += lowerCaseName.length;
+			}
+			offsets[size()] = nByteCount;
+			lowerCaseBytes = Arrays.copyOf(bytes, nByteCount);
+			lowerCaseOffsets = offsets;
+		}
+
+		boolean containsLowerCase(int i, byte[] needle) {
+			int nStart = lowerCaseOffsets[i], nLastStart = lowerCaseOffsets[i + 1] - needle.length;
+			for (int j = nStart; j <= nLastStart; j++) {
+				int k = 0;
+				while (k < needle.length && lowerCaseBytes[j + k] == needle[k])
+					k++;
+				if (k == needle.length)
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return the indexes of the entries matching the given name or pattern
+		 */
+		IntStream match(String pattern, String matchMethod) {
+			int nPrefixLength = literalPrefixLength(pattern);
+			if ("exact".equals(matchMethod) || ("wildcard".equals(matchMethod) && nPrefixLength == pattern.length())) {
+				int[] range = getPrefixRange(pattern);
+				int nEnd = range[0];	// entries equal to the prefix come first
+				while (nEnd < range[1] && get(nEnd).equals(pattern))
+					nEnd++;
+				return IntStream.range(range[0], nEnd);
+			}
+
+			if ("wildcard".equals(matchMethod)) {
+				int[] range = getPrefixRange(pattern.substring(0, nPrefixLength));
+				Pattern regex = Pattern.compile("^" + pattern.replaceAll("\\*", ".*").replaceAll("%", ".*").replaceAll("\\?", ".") + "$");
+				return IntStream.range(range[0], range[1]).parallel().filter(i -> regex.matcher(get(i)).matches());
+			}
+
+			if ("case_insensitive".equals(matchMethod)) {
+				if (nPrefixLength == pattern.length()) {	// plain substring: search the lowercase mirror
+					byte[] needle = pattern.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8);
+					return IntStream.range(0, size()).parallel().filter(i -> containsLowerCase(i, needle));
+				}
+				Pattern regex = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+				return IntStream.range(0, size()).parallel().filter(i -> regex.matcher(get(i)).find());
+			}
+
+			throw new IllegalArgumentException(matchMethod + " matchMethod not supported");
+		}
+	}
+
+	/**
+	 * Marker IDs, as held by the MarkerIdIndex
+	 */
+	static private class IdDictionary extends Dictionary {
+		private final MarkerIdIndex markerIdIndex;
+
+		private IdDictionary(MarkerIdIndex markerIdIndex) {
+			this.markerIdIndex = markerIdIndex;
+		}
+
+		@Override
+		int size() {
+			return markerIdIndex.size();
+		}
+
+		@Override
+		String get(int i) {
+			return markerIdIndex.get(i);
+		}
+
+		@Override
+		int getMarkerOrdinal(int i) {
+			return i;
+		}
+
+		@Override
+		int[] getPrefixRange(String prefix) {
+			return markerIdIndex.getPrefixRange(prefix);
+		}
+	}
+
+	/**
+	 * Marker synonyms (whatever their type), i.e. an inverted index from synonym to marker
+	 */
+	static private class SynonymDictionary extends Dictionary {
+		private final byte[] synonymBytes;
+		private final int[] offsets;
+		private final int[] markerOrdinals;
+
+		private SynonymDictionary(byte[] synonymBytes, int[] offsets, int[] markerOrdinals) {
+			this.synonymBytes = synonymBytes;
+			this.offsets = offsets;
+			this.markerOrdinals = markerOrdinals;
+		}
+
+		@Override
+		int size() {
+			return markerOrdinals.length;
+		}
+
+		@Override
+		String get(int i) {
+			return new String(synonymBytes, offsets[i], offsets[i + 1] - offsets[i], StandardCharsets.UTF_8);
+		}
+
+		@Override
+		int getMarkerOrdinal(int i) {
+			return markerOrdinals[i];
+		}
+
+		@Override
+		int[] getPrefixRange(String prefix) {
+			byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+			return new int[] { lowerBound(key, false), lowerBound(key, true) };
+		}
+
+		/**
+		 * @param fPastPrefix whether to look for the first entry that is greater than the key and does not start with it (rather than greater or equal)
+		 */
+		private int lowerBound(byte[] key, boolean fPastPrefix) {
+			int nLow = 0, nHigh = size();
+			while (nLow < nHigh) {
+				int nMid = (nLow + nHigh) >>> 1;
+				int cmp = compare(synonymBytes, offsets[nMid], fPastPrefix ? Math.min(key.length, offsets[nMid + 1] - offsets[nMid]) : offsets[nMid + 1] - offsets[nMid], key, 0, key.length);
+				if (cmp < 0 || (fPastPrefix && cmp == 0))
+					nLow = nMid + 1;
+				else
+					nHigh = nMid;
+			}
+			return nLow;
+		}
+	}
+
+	private final MarkerIdIndex markerIdIndex;
+	private final IdDictionary idDictionary;
+	private final SynonymDictionary synonymDictionary;
+
+	private MarkerNameIndex(MarkerIdIndex markerIdIndex, SynonymDictionary synonymDictionary) {
+		this.markerIdIndex = markerIdIndex;
+		idDictionary = new IdDictionary(markerIdIndex);
+		idDictionary.buildLowerCaseMirror();
+		this.synonymDictionary = synonymDictionary;
+		synonymDictionary.buildLowerCaseMirror();
+	}
+
+	/**
+	 * @return the current index for the given database (see VersionedCache.get), or null if the database does not exist
+	 */
+	static public MarkerNameIndex get(String database) {
+		return indexes.get(database);
+	}
+
+	static private MarkerNameIndex build(String database) {
+		MarkerIdIndex markerIdIndex = MarkerIdIndex.getUpToDate(database);
+		if (markerIdIndex == null)
+			return null;
+		MarkerNameIndex index = new MarkerNameIndex(markerIdIndex, buildSynonymDictionary(MongoTemplateManager.get(database), markerIdIndex));
+		LOG.debug("Marker name index for " + database + " holds " + index.synonymDictionary.size() + " synonyms");
+		return index;
+	}
+
+	static private SynonymDictionary buildSynonymDictionary(MongoTemplate mongoTemplate, MarkerIdIndex markerIdIndex) {
+		int[] offsets = new int[1024], markerOrdinals = new int[1024];
+		byte[] bytes = new byte[1024 * 16];
+		int nSize = 0, nByteCount = 0;
+		try (MongoCursor<Document> markerCursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find(new Document(VariantData.FIELDNAME_SYNONYMS, new Document("$exists", true))).projection(new Document(VariantData.FIELDNAME_SYNONYMS, 1)).iterator()) {
+			while (markerCursor.hasNext()) {
+				Document marker = markerCursor.next();
+				Document synonyms = (Document) marker.get(VariantData.FIELDNAME_SYNONYMS);
+				int ordinal = markerIdIndex.rank(marker.get("_id").toString());
+				if (synonyms == null || ordinal < 0)
+					continue;
+
+				Set<String> markerSynonyms = new HashSet<>();
+				for (String synType : synonyms.keySet())
+					for (Object synonym : (List<Object>) synonyms.get(synType))
+						markerSynonyms.add(synonym.toString());
+				for (String synonym : markerSynonyms) {
+					byte[] synonymBytes = synonym.getBytes(StandardCharsets.UTF_8);
+					if (nSize + 1 >= offsets.length) {
+						offsets = Arrays.copyOf(offsets, offsets.length + (offsets.length >> 1));
+						markerOrdinals = Arrays.copyOf(markerOrdinals, offsets.length);
+					}
+					if (nByteCount + synonymBytes.length > bytes.length)
+						bytes = Arrays.copyOf(bytes, Math.max(nByteCount + synonymBytes.length, bytes.length + (bytes.length >> 1)));
+					System.arraycopy(synonymBytes, 0, bytes, nByteCount, synonymBytes.length);
+					markerOrdinals[nSize] = ordinal;
+					offsets[nSize++] = nByteCount;
+					nByteCount += synonymBytes.length;
+				}
+			}
+		}
+		offsets[nSize] = nByteCount;
+
+		// sort entries by synonym, then by marker
+		final byte[] unsortedBytes = bytes;
+		final int[] unsortedOffsets = offsets, unsortedOrdinals = markerOrdinals;
+		int[] order = IntStream.range(0, nSize).boxed().sorted((i, j) -> {
+			int cmp = compare(unsortedBytes, unsortedOffsets[i], unsortedOffsets[i + 1] - unsortedOffsets[i], unsortedBytes, unsortedOffsets[j], unsortedOffsets[j + 1] - unsortedOffsets[j]);
+			return cmp != 0 ? cmp : Integer.compare(unsortedOrdinals[i], unsortedOrdinals[j]);
+		}).mapToInt(Integer::intValue).toArray();
+
+		byte[] sortedBytes = new byte[nByteCount];
+		int[] sortedOffsets = new int[nSize + 1], sortedOrdinals = new int[nSize];
+		int nPosition = 0;
+		for (int i = 0; i < nSize; i++) {
+			int nLength = unsortedOffsets[order[i] + 1] - unsortedOffsets[order[i]];
+			System.arraycopy(unsortedBytes, unsortedOffsets[order[i]], sortedBytes, nPosition, nLength);
+			sortedOffsets[i] = nPosition;
+			sortedOrdinals[i] = unsortedOrdinals[order[i]];
+			nPosition += nLength;
+		}
+		sortedOffsets[nSize] = nPosition;
+		return new SynonymDictionary(sortedBytes, sortedOffsets, sortedOrdinals);
+	}
+
+	/**
+	 * Compares byte ranges in unsigned order (i.e. MongoDB's default string order)
+	 */
+	static private int compare(byte[] a, int nStartA, int nLengthA, byte[] b, int nStartB, int nLengthB) {
+		int nCommonLength = Math.min(nLengthA, nLengthB);
+		for (int i = 0; i < nCommonLength; i++) {
+			int diff = (a[nStartA + i] & 0xff) - (b[nStartB + i] & 0xff);
+			if (diff != 0)
+				return diff;
+		}
+		return nLengthA - nLengthB;
+	}
+
+	/**
+	 * @return the length of the literal prefix every match of the given pattern must start with, i.e. its length if it has no metacharacter,
+	 * 0 if it contains an alternation, otherwise the index of its first metacharacter, minus one if that is a quantifier which may make the preceding character optional
+	 */
+	static private int literalPrefixLength(String pattern) {
+		for (int i = 0; i < pattern.length(); i++)
+			if (REGEX_METACHARACTERS.indexOf(pattern.charAt(i)) != -1 || pattern.charAt(i) == '%') {
+				if (pattern.indexOf('|', i) != -1)
+					return 0;
+				return i > 0 && "?*{".indexOf(pattern.charAt(i)) != -1 ? i - 1 : i;
+			}
+		return pattern.length();
+	}
+
+	/**
+	 * @param pattern a marker name, or a pattern to be interpreted according to matchMethod: with wildcard, * and % stand for any sequence of characters and ? for any character;
+	 * with case_insensitive, it is a regular expression to be found anywhere in names, regardless of case
+	 * @param matchMethod one of exact, wildcard or case_insensitive
+	 * @param fIncludeSynonyms whether to also look for markers having a matching synonym
+	 * @return sorted ordinals (in the MarkerIdIndex, thus sorted by _id) of matching markers
+	 * @throws IllegalArgumentException if matchMethod is not supported
+	 */
+	public int[] match(String pattern, String matchMethod, boolean fIncludeSynonyms) {
+		IntStream ordinals = idDictionary.match(pattern, matchMethod);
+		if (fIncludeSynonyms && synonymDictionary.size() > 0)
+			ordinals = IntStream.concat(ordinals, synonymDictionary.match(pattern, matchMethod).map(synonymDictionary::getMarkerOrdinal));
+		return ordinals.sorted().distinct().toArray();
+	}
+
+	public MarkerIdIndex getMarkerIdIndex() {
+		return markerIdIndex;
+	}
+}
@@ -0,0 +1,201 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.apache.commons.lang.StringUtils;
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+
+/**
+ * Per-database LRU cache of marker name filters resolved into the sorted list of matching marker IDs, by ID or synonym
+ * (see MarkerNameIndex). Paging through a filter's results thus consists in slicing that list, without resolving the
+ * filter again nor passing MongoDB more than a page of IDs. Exact names that are marker IDs are looked up via the _id
+ * index, so that plain ID lookups do not require building the MarkerNameIndex. A database's entries are dropped once its
+ * version stamp changes (see DatabaseVersionTracker).
+ *
+ * @author sempere
+ */
+public class MarkerNameMatchCache {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(MarkerNameMatchCache.class);
+
+	static private final int TYPE_FILTER_BATCH_SIZE = 10000;
+
+	/**
+	 * List of marker IDs backed by their ordinals in a MarkerIdIndex
+	 */
+	static private class OrdinalList extends AbstractList<String> implements RandomAccess {
+		private final MarkerIdIndex markerIdIndex;
+		private final int[] ordinals;
+
+		private OrdinalList(MarkerIdIndex markerIdIndex, int[] ordinals) {
+			this.markerIdIndex = markerIdIndex;
+			this.ordinals = ordinals;
+		}
+
+		@Override
+		public String get(int i) {
+			return markerIdIndex.get(ordinals[i]);
+		}
+
+		@Override
+		public int size() {
+			return ordinals.length;
+		}
+	}
+
+	static private class DatabaseCache {
+		private final String versionStamp;
+		private final LinkedHashMap<String /* filter */, List<String>> matches;
+
+		private DatabaseCache(String versionStamp, final int maxSize) {
+			this.versionStamp = versionStamp;
+			matches = new LinkedHashMap<String, List<String>>(16, .75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+					return size() > maxSize;
+				}
+			};
+		}
+	}
+
+	private final int maxSizePerDatabase;
+	private final Map<String /* database */, DatabaseCache> caches = new ConcurrentHashMap<>();
+
+	public MarkerNameMatchCache(int maxSizePerDatabase) {
+		this.maxSizePerDatabase = maxSizePerDatabase;
+	}
+
+	private DatabaseCache getDatabaseCache(String database) {
+		String versionStamp = DatabaseVersionTracker.getVersionStamp(database);
+		return caches.compute(database, (db, cache) -> cache != null && cache.versionStamp != null && cache.versionStamp.equals(versionStamp) ? cache : new DatabaseCache(versionStamp, maxSizePerDatabase));
+	}
+
+	/**
+	 * @return a key identifying the passed filter, regardless of the order names were passed in
+	 */
+	static public String getFilterKey(Collection<String> names, String matchMethod, String type) {
+		return matchMethod + "\n" + type + "\n" + StringUtils.join(new TreeSet<>(names), "\n");
+	}
+
+	/**
+	 * @param names marker names or name patterns, to be interpreted according to matchMethod (see MarkerNameIndex.match)
+	 * @param type marker type to restrict matches to, or null for any
+	 * @param maxTimeMillis time after which MongoDB should abort the queries involved (a MongoExecutionTimeoutException is then thrown)
+	 * @return an unmodifiable list of the IDs of markers matching any of the names, sorted by _id
+	 * @throws IllegalArgumentException if matchMethod is not supported
+	 */
+	public List<String> get(String database, MongoTemplate mongoTemplate, Collection<String> names, String matchMethod, String type, long maxTimeMillis) {
+		DatabaseCache cache = getDatabaseCache(database);
+		String filterKey = getFilterKey(names, matchMethod, type);
+		List<String> matchingIDs;
+		synchronized (cache.matches) {
+			matchingIDs = cache.matches.get(filterKey);
+		}
+		if (matchingIDs != null)
+			return matchingIDs;
+
+		long before = System.currentTimeMillis(), deadline = before + maxTimeMillis;
+		matchingIDs = resolve(database, mongoTemplate, names, matchMethod, deadline);
+		if (type != null)
+			matchingIDs = filterByType(mongoTemplate, matchingIDs, type, deadline);
+		LOG.debug("Resolved " + names.size() + " marker name(s) to " + matchingIDs.size() + " IDs in " + (System.currentTimeMillis() - before) + "ms");
+		if (matchingIDs instanceof OrdinalList && !((OrdinalList) matchingIDs).markerIdIndex.getVersionStamp().equals(cache.versionStamp))
+			return matchingIDs;	// resolved with an index that is being rebuilt: not to be kept for the current version stamp
+		synchronized (cache.matches) {
+			cache.matches.put(filterKey, matchingIDs);
+		}
+		return matchingIDs;
+	}
+
+	static private List<String> resolve(String database, MongoTemplate mongoTemplate, Collection<String> names, String matchMethod, long deadline) {
+		Set<String> existingIDs = new HashSet<>();
+		if ("exact".equals(matchMethod)) {
+			try (MongoCursor<Document> markerCursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find(new Document("_id", new Document("$in", names))).projection(new Document("_id", 1)).maxTime(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS).iterator()) {
+				while (markerCursor.hasNext())
+					existingIDs.add(markerCursor.next().get("_id").toString());
+			}
+			if (existingIDs.containsAll(names))
+				return Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(existingIDs)));	// IDs only: no need for the name index
+		}
+
+		MarkerNameIndex markerNameIndex = MarkerNameIndex.get(database);
+		MarkerIdIndex markerIdIndex = markerNameIndex.getMarkerIdIndex();
+		int[] ordinals = names.stream().filter(name -> !existingIDs.contains(name)).map(name -> markerNameIndex.match(name, matchMethod, true)).flatMapToInt(Arrays::stream).toArray();
+		int[] idOrdinals = existingIDs.stream().mapToInt(markerIdIndex::rank).filter(ordinal -> ordinal >= 0).toArray();
+		return new OrdinalList(markerIdIndex, IntStream.concat(Arrays.stream(ordinals), Arrays.stream(idOrdinals)).sorted().distinct().toArray());
+	}
+
+	/**
+	 * @return those of the passed IDs that belong to markers of the given type, in the same order
+	 */
+	static private List<String> filterByType(MongoTemplate mongoTemplate, List<String> markerIDs, String type, long deadline) {
+		boolean[] kept = new boolean[markerIDs.size()];
+		int nKeptCount = 0;
+		for (int nBatchStart = 0; nBatchStart < markerIDs.size(); nBatchStart += TYPE_FILTER_BATCH_SIZE) {
+			List<String> batch = markerIDs.subList(nBatchStart, Math.min(markerIDs.size(), nBatchStart + TYPE_FILTER_BATCH_SIZE));
+			Set<String> typedIDs = new HashSet<>();
+			try (MongoCursor<Document> markerCursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find(new Document("_id", new Document("$in", new ArrayList<>(batch))).append(VariantData.FIELDNAME_TYPE, type)).projection(new Document("_id", 1)).maxTime(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS).iterator()) {
+				while (markerCursor.hasNext())
+					typedIDs.add(markerCursor.next().get("_id").toString());
+			}
+			for (int i = 0; i < batch.size(); i++)
+				if (typedIDs.contains(batch.get(i))) {
+					kept[nBatchStart + i] = true;
+					nKeptCount++;
+				}
+		}
+
+		if (markerIDs instanceof OrdinalList) {
+			OrdinalList ordinalList = (OrdinalList) markerIDs;
+			int[] keptOrdinals = new int[nKeptCount];
+			for (int i = 0, j = 0; i < kept.length; i++)
+				if (kept[i])
+					keptOrdinals[j++] = ordinalList.ordinals[i];
+			return new OrdinalList(ordinalList.markerIdIndex, keptOrdinals);
+		}
+		List<String> keptIDs = new ArrayList<>(nKeptCount);
+		for (int i = 0; i < kept.length; i++)
+			if (kept[i])
+				keptIDs.add(markerIDs.get(i));
+		return Collections.unmodifiableList(keptIDs);
+	}
+}
@@ -0,0 +1,254 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.TreeMap;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+import com.mongodb.client.MongoCursor;
+
+import fr.cirad.mgdb.model.mongo.maintypes.VariantData;
+import fr.cirad.mgdb.model.mongo.subtypes.ReferencePosition;
+import fr.cirad.tools.mongo.MongoTemplateManager;
+
+/**
+ * In-memory index of marker positions on a database's default assembly: for each linkage group, a sorted array of
+ * positions and the ordinals (in the MarkerIdIndex) of the corresponding markers. It resolves genomic regions to marker
+ * lists with two binary searches. Instances are built lazily and rebuilt once the database's version stamp changes.
+ *
+ * @author sempere
+ */
+public class MarkerPositionIndex {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(MarkerPositionIndex.class);
+
+	static private final long MAX_POSITION = 0xFFFFFFFFL;	// positions are packed with ordinals into 64-bit values for sorting
+
+	static private final VersionedCache<MarkerPositionIndex> indexes = new VersionedCache<>("marker position index", MarkerPositionIndex::build, index -> index.versionStamp);
+
+	static private class LinkageGroup {
+		private final long[] positions;
+		private final int[] ordinals;
+
+		private LinkageGroup(long[] positions, int[] ordinals) {
+			this.positions = positions;
+			this.ordinals = ordinals;
+		}
+	}
+
+	/**
+	 * Markers located in a region, sorted by linkage group name then position
+	 */
+	public class Region extends AbstractList<String> implements RandomAccess {
+		private final String[] linkageGroupNames;
+		private final int[] starts;	// first index in each linkage group's arrays
+		private final int[] cumulativeSizes;	// cumulativeSizes[i] is the number of region markers in linkage groups 0..i
+
+		private Region(String[] linkageGroupNames, int[] starts, int[] cumulativeSizes) {
+			this.linkageGroupNames = linkageGroupNames;
+			this.starts = starts;
+			this.cumulativeSizes = cumulativeSizes;
+		}
+
+		private int locate(int index) {
+			if (index < 0 || index >= size())
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+			int nGroup = Arrays.binarySearch(cumulativeSizes, index + 1);
+			return nGroup >= 0 ? firstGroupReaching(nGroup) : -nGroup - 1;
+		}
+
+		private int firstGroupReaching(int nGroup) {	// skips empty groups sharing the same cumulative size
+			while (nGroup > 0 && cumulativeSizes[nGroup - 1] == cumulativeSizes[nGroup])
+				nGroup--;
+			return nGroup;
+		}
+
+		private int arrayIndex(int nGroup, int index) {
+			return starts[nGroup] + index - (nGroup == 0 ? 0 : cumulativeSizes[nGroup - 1]);
+		}
+
+		@Override
+		public String get(int index) {
+			int nGroup = locate(index);
+			return markerIdIndex.get(linkageGroups.get(linkageGroupNames[nGroup]).ordinals[arrayIndex(nGroup, index)]);
+		}
+
+		@Override
+		public int size() {
+			return cumulativeSizes.length == 0 ? 0 : cumulativeSizes[cumulativeSizes.length - 1];
+		}
+
+		public String getLinkageGroupName(int index) {
+			return linkageGroupNames[locate(index)];
+		}
+
+		public long getPosition(int index) {
+			int nGroup = locate(index);
+			return linkageGroups.get(linkageGroupNames[nGroup]).positions[arrayIndex(nGroup, index)];
+		}
+	}
+
+	private final String versionStamp;
+	private final MarkerIdIndex markerIdIndex;
+	private final TreeMap<String /* linkage group */, LinkageGroup> linkageGroups;
+
+	private MarkerPositionIndex(String versionStamp, MarkerIdIndex markerIdIndex, TreeMap<String, LinkageGroup> linkageGroups) {
+		this.versionStamp = versionStamp;
+		this.markerIdIndex = markerIdIndex;
+		this.linkageGroups = linkageGroups;
+	}
+
+	/**
+	 * @return the current index for the given database (see VersionedCache.get), or null if the database does not exist
+	 */
+	static public MarkerPositionIndex get(String database) {
+		return indexes.get(database);
+	}
+
+	/**
+	 * @return the index built for the database's current version stamp, building it synchronously if needed, or null if the database does not exist
+	 */
+	static public MarkerPositionIndex getUpToDate(String database) {
+		return indexes.getUpToDate(database);
+	}
+
+	static private MarkerPositionIndex build(String database) {
+		DatabaseMetadataSnapshot metadata = DatabaseMetadataSnapshot.getUpToDate(database);
+		MarkerIdIndex markerIdIndex = MarkerIdIndex.getUpToDate(database);
+		if (metadata == null || markerIdIndex == null)
+			return null;
+		String versionStamp = markerIdIndex.getVersionStamp().equals(metadata.getVersionStamp()) ? metadata.getVersionStamp() : null;	// data changed in the meantime: the index must not be reused
+		return build(database, metadata, markerIdIndex, versionStamp);
+	}
+
+	static private MarkerPositionIndex build(String database, DatabaseMetadataSnapshot metadata, MarkerIdIndex markerIdIndex, String versionStamp) {
+		MongoTemplate mongoTemplate = MongoTemplateManager.get(database);
+		Map<String, long[]> positionsBySequence = new HashMap<>();
+		int nSkippedCount = 0;
+		Map<String, int[]> sizesBySequence = new HashMap<>();
+		String sequencePath = metadata.getRefPosPath() + "." + ReferencePosition.FIELDNAME_SEQUENCE, startSitePath = metadata.getRefPosPath() + "." + ReferencePosition.FIELDNAME_START_SITE;
+		Document projectObject = new Document(sequencePath, 1);
+		projectObject.put(startSitePath, 1);
+		try (MongoCursor<Document> markerCursor = mongoTemplate.getCollection(mongoTemplate.getCollectionName(VariantData.class)).find(new Document(sequencePath, new Document("$in", metadata.getContigs()))).projection(projectObject).iterator()) {
+			while (markerCursor.hasNext()) {
+				Document marker = markerCursor.next();
+				Document refPos = (Document) marker.get(metadata.getRefPosPath());
+				Number position = refPos == null ? null : (Number) refPos.get(ReferencePosition.FIELDNAME_START_SITE);
+				String sequence = refPos == null ? null : refPos.getString(ReferencePosition.FIELDNAME_SEQUENCE);
+				int ordinal = markerIdIndex.rank(marker.get("_id").toString());
+				if (position == null || sequence == null || ordinal < 0)
+					continue;	// unpositioned, or added since the ID index was built
+				if (position.longValue() < 0 || position.longValue() > MAX_POSITION) {
+					nSkippedCount++;
+					continue;
+				}
+
+				// pack each position with its ordinal so that a single primitive sort orders both
+				int[] size = sizesBySequence.computeIfAbsent(sequence, s -> new int[1]);
+				long[] packed = positionsBySequence.computeIfAbsent(sequence, s -> new long[1024]);
+				if (size[0] == packed.length)
+					positionsBySequence.put(sequence, packed = Arrays.copyOf(packed, packed.length + (packed.length >> 1)));
+				packed[size[0]++] = (position.longValue() << 32 | ordinal) ^ Long.MIN_VALUE;	// flipping the sign bit makes signed order match unsigned order
+			}
+		}
+		if (nSkippedCount > 0)
+			LOG.warn(nSkippedCount + " markers were left out of the position index for " + database + " because their position exceeds " + MAX_POSITION);
+
+		TreeMap<String, LinkageGroup> linkageGroups = new TreeMap<>();
+		for (Map.Entry<String, long[]> entry : positionsBySequence.entrySet()) {
+			int nSize = sizesBySequence.get(entry.getKey())[0];
+			long[] packed = entry.getValue();
+			Arrays.sort(packed, 0, nSize);
+			long[] positions = new long[nSize];
+			int[] ordinals = new int[nSize];
+			for (int i = 0; i < nSize; i++) {
+				positions[i] = (packed[i] ^ Long.MIN_VALUE) >>> 32;
+				ordinals[i] = (int) packed[i];
+			}
+			linkageGroups.put(entry.getKey(), new LinkageGroup(positions, ordinals));
+		}
+		return new MarkerPositionIndex(versionStamp, markerIdIndex, linkageGroups);
+	}
+
+	/**
+	 * @param linkageGroupNames linkage groups to look into, or null for all of them
+	 * @param minPosition lowest position to include, or null for no lower bound
+	 * @param maxPosition highest position to include, or null for no upper bound
+	 * @return an unmodifiable List view of the IDs of markers located within the given bounds, sorted by linkage group name then position
+	 */
+	public Region getRegion(Collection<String> linkageGroupNames, Long minPosition, Long maxPosition) {
+		List<String> names = new ArrayList<>();
+		for (String name : linkageGroups.keySet())
+			if (linkageGroupNames == null || linkageGroupNames.contains(name))
+				names.add(name);
+
+		int[] starts = new int[names.size()], cumulativeSizes = new int[names.size()];
+		int nTotal = 0;
+		for (int i = 0; i < names.size(); i++) {
+			long[] positions = linkageGroups.get(names.get(i)).positions;
+			starts[i] = minPosition == null ? 0 : lowerBound(positions, minPosition);
+			int nEnd = maxPosition == null ? positions.length : upperBound(positions, maxPosition);
+			nTotal += Math.max(0, nEnd - starts[i]);
+			cumulativeSizes[i] = nTotal;
+		}
+		return new Region(names.toArray(new String[names.size()]), starts, cumulativeSizes);
+	}
+
+	/**
+	 * @return the index of the first element that is greater than or equal to the given value
+	 */
+	static private int lowerBound(long[] sortedValues, long value) {
+		int nLow = 0, nHigh = sortedValues.length;
+		while (nLow < nHigh) {
+			int nMid = (nLow + nHigh) >>> 1;
+			if (sortedValues[nMid] < value)
+				nLow = nMid + 1;
+			else
+				nHigh = nMid;
+		}
+		return nLow;
+	}
+
+	/**
+	 * @return the index of the first element that is greater than the given value
+	 */
+	static private int upperBound(long[] sortedValues, long value) {
+		int nLow = 0, nHigh = sortedValues.length;
+		while (nLow < nHigh) {
+			int nMid = (nLow + nHigh) >>> 1;
+			if (sortedValues[nMid] <= value)
+				nLow = nMid + 1;
+			else
+				nHigh = nMid;
+		}
+		return nLow;
+	}
+}
@@ -0,0 +1,219 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import com.mongodb.client.model.CountOptions;
+
+import fr.cirad.tools.Helper;
+
+/**
+ * LRU cache of query result counts, keyed by database, collection and filter hash, so that browsing the pages of a
+ * given query only counts once. Entries are only valid for the data version they were computed with (see
+ * DatabaseVersionTracker). Unfiltered counts are taken from the collection's metadata and flagged as estimated.
+ * Counts are run on a dedicated thread pool so that callers may query the page they need concurrently, and may
+ * be given a deadline (the time left when the count actually starts is passed to MongoDB as maxTimeMS) beyond which
+ * callers should do without them. Concurrent requests for the same count share a single query.
+ *
+ * @author sempere
+ */
+public class ResultCountCache {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(ResultCountCache.class);
+
+	static public class Count {
+		private final long value;
+		private final boolean fEstimated;
+		private final boolean fTimedOut;
+		private final String versionStamp;
+
+		private Count(long value, boolean fEstimated, String versionStamp) {
+			this(value, fEstimated, false, versionStamp);
+		}
+
+		private Count(long value, boolean fEstimated, boolean fTimedOut, String versionStamp) {
+			this.value = value;
+			this.fEstimated = fEstimated;
+			this.fTimedOut = fTimedOut;
+			this.versionStamp = versionStamp;
+		}
+
+		public long getValue() {
+			return value;
+		}
+
+		public boolean isEstimated() {
+			return fEstimated;
+		}
+
+		/**
+		 * @return true if the actual count could not be obtained in time, in which case the value is only a lower bound
+		 */
+		public boolean isTimedOut() {
+			return fTimedOut;
+		}
+	}
+
+	private final Map<String, Count> counts;
+	private final Map<String, CompletableFuture<Count>> countsInProgress = new ConcurrentHashMap<>();
+	private final ExecutorService countExecutor;
+
+	public ResultCountCache(final int maxSize, int nThreadCount) {
+		countExecutor = Executors.newFixedThreadPool(nThreadCount, r -> {
+			Thread t = new Thread(r, "resultCounter");
+			t.setDaemon(true);
+			return t;
+		});
+		counts = new LinkedHashMap<String, Count>(16, .75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Count> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @return the cached count for the given query if it is still valid, otherwise null
+	 */
+	public Count getCached(String database, Class<?> entityClass, String filterKey) {
+		String versionStamp = DatabaseVersionTracker.getVersionStamp(database);
+		Count count;
+		synchronized (counts) {
+			count = counts.get(getKey(database, entityClass, filterKey));
+		}
+		return count != null && count.versionStamp != null && count.versionStamp.equals(versionStamp) ? count : null;
+	}
+
+	/**
+	 * Records a count obtained by other means (e.g. along with a page of results)
+	 */
+	public Count put(String database, Class<?> entityClass, String filterKey, long value) {
+		Count count = new Count(value, false, DatabaseVersionTracker.getVersionStamp(database));
+		synchronized (counts) {
+			counts.put(getKey(database, entityClass, filterKey), count);
+		}
+		return count;
+	}
+
+	static private String getKey(String database, Class<?> entityClass, String filterKey) {
+		return database + "\n" + entityClass.getName() + "\n" + filterKey;
+	}
+
+	/**
+	 * Launches a count in the background, unless a valid one is cached
+	 *
+	 * @param filterKey hash identifying the passed criteria
+	 * @param deadline time (as returned by System.currentTimeMillis) after which counting is pointless, or 0 for no limit
+	 */
+	public Future<Count> countAsync(String database, MongoTemplate mongoTemplate, Class<?> entityClass, List<Criteria> crits, String filterKey, long deadline) {
+		Count count = getCached(database, entityClass, filterKey);
+		if (count != null)
+			return CompletableFuture.completedFuture(count);
+
+		String versionStamp = DatabaseVersionTracker.getVersionStamp(database);
+		String key = getKey(database, entityClass, filterKey);
+		String inProgressKey = key + "\n" + versionStamp;
+		final List<Criteria> countCrits = new ArrayList<>(crits);	// callers may go on modifying theirs
+		CompletableFuture<Count> newCountFuture = new CompletableFuture<>();
+		CompletableFuture<Count> countFuture = countsInProgress.putIfAbsent(inProgressKey, newCountFuture);
+		if (countFuture != null)
+			return countFuture;	// an identical count is already queued or running
+
+		try {
+			countExecutor.execute(() -> {
+				try {
+					Count newCount;
+					if (countCrits.isEmpty())
+						newCount = new Count(Helper.estimDocCount(mongoTemplate, entityClass), true, versionStamp);
+					else {
+						long maxTimeMillis = deadline == 0 ? 0 : deadline - System.currentTimeMillis();
+						if (deadline != 0 && maxTimeMillis <= 0)
+							throw new TimeoutException("Deadline passed before count could start");
+						CountOptions countOptions = new CountOptions();
+						if (maxTimeMillis > 0)
+							countOptions.maxTime(maxTimeMillis, TimeUnit.MILLISECONDS);
+						newCount = new Count(mongoTemplate.getCollection(mongoTemplate.getCollectionName(entityClass)).countDocuments(new Query(new Criteria().andOperator(countCrits.toArray(new Criteria[countCrits.size()]))).getQueryObject(), countOptions), false, versionStamp);
+					}
+					synchronized (counts) {
+						counts.put(key, newCount);
+					}
+					newCountFuture.complete(newCount);
+				} catch (Throwable t) {
+					newCountFuture.completeExceptionally(t);
+				} finally {
+					countsInProgress.remove(inProgressKey, newCountFuture);
+				}
+			});
+		} catch (RejectedExecutionException ree) {
+			countsInProgress.remove(inProgressKey, newCountFuture);
+			newCountFuture.completeExceptionally(ree);
+		}
+		return newCountFuture;
+	}
+
+	/**
+	 * Waits for a count launched via countAsync, until the given deadline
+	 *
+	 * @param deadline time (as returned by System.currentTimeMillis) until which to wait
+	 * @param knownResultCount number of results known to exist, used as the count's value if it could not be obtained in time
+	 */
+	static public Count await(Future<Count> count, long deadline, long knownResultCount) {
+		try {
+			return count.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException te) {
+			// the count may be shared with other callers, and MongoDB aborts it itself once maxTimeMS is reached
+		} catch (ExecutionException ee) {
+			LOG.debug("Unable to count results: " + ee.getCause());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+		return timedOut(knownResultCount);
+	}
+
+	/**
+	 * @param knownResultCount number of results known to exist
+	 * @return a count standing for one that could not be obtained in time
+	 */
+	static public Count timedOut(long knownResultCount) {
+		return new Count(knownResultCount, true, true, null);
+	}
+
+	public void shutdown() {
+		countExecutor.shutdownNow();
+	}
+}
@@ -0,0 +1,128 @@
+/** *****************************************************************************
+ * MGDB BrAPI Impl - Mongo Genotype DataBase, BrAPI service implementation
+ * Copyright (C) 2018, <CIRAD> <IRD>
+ *
+ * This program is free software: you can redistribute it and/or modify it under
+ * the terms of the GNU Affero General Public License, version 3 as published by
+ * the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Affero General Public License for more
+ * details.
+ *
+ * See <http://www.gnu.org/licenses/agpl.html> for details about GNU General
+ * Public License V3.
+ ******************************************************************************
+ */
+package fr.cirad.web.controller.rest;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Holds, for each database, a value derived from its data (typically an in-memory index) along with the version stamp
+ * it was built for, and rebuilds it when DatabaseVersionTracker reports a different stamp. Only the very first value
+ * for a database is built synchronously (concurrent callers waiting for the same build): later rebuilds happen in the
+ * background while the previous value keeps being served.
+ *
+ * @author sempere
+ */
+public class VersionedCache<T> {
+
+	/**
+	 * logger
+	 */
+	static private final org.apache.log4j.Logger LOG = org.apache.log4j.Logger.getLogger(VersionedCache.class);
+
+	static private final ExecutorService rebuildExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "versionedCacheRebuild");
+		t.setDaemon(true);
+		return t;
+	});
+
+	private final String description;
+	private final Function<String /* database */, T> builder;
+	private final Function<T, String> versionStampGetter;
+	private final Map<String /* database */, T> values = new ConcurrentHashMap<>();
+	private final Map<String /* database */, Object> buildLocks = new ConcurrentHashMap<>();
+	private final Set<String /* database */> rebuildsInProgress = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param description what the values are, for logging purposes
+	 * @param builder builds the value for a database, returning null if it does not exist
+	 * @param versionStampGetter gives the version stamp a value was built for, null meaning it must not be reused (e.g. built from inconsistent inputs)
+	 */
+	public VersionedCache(String description, Function<String, T> builder, Function<T, String> versionStampGetter) {
+		this.description = description;
+		this.builder = builder;
+		this.versionStampGetter = versionStampGetter;
+	}
+
+	/**
+	 * @return the current value for the given database (possibly built for a previous version stamp while a rebuild is in progress), or null if the database does not exist
+	 */
+	public T get(String database) {
+		String currentStamp = DatabaseVersionTracker.getVersionStamp(database);
+		if (currentStamp == null)
+			return null;
+
+		T value = values.get(database);
+		if (value == null)
+			return getUpToDate(database);
+		if (!currentStamp.equals(versionStampGetter.apply(value)))
+			rebuildInBackground(database);
+		return value;
+	}
+
+	/**
+	 * @return the value built for the database's current version stamp, building it synchronously if needed, or null if the database does not exist.
+	 * Meant for callers whose results are tied to the current stamp, e.g. builders of values depending on this one.
+	 */
+	public T getUpToDate(String database) {
+		String currentStamp = DatabaseVersionTracker.getVersionStamp(database);
+		if (currentStamp == null)
+			return null;
+
+		T value = values.get(database);
+		if (value != null && currentStamp.equals(versionStampGetter.apply(value)))
+			return value;
+
+		synchronized (buildLocks.computeIfAbsent(database, db -> new Object())) {
+			value = values.get(database);
+			if (value == null || !currentStamp.equals(versionStampGetter.apply(value))) {
+				long before = System.currentTimeMillis();
+				value = builder.apply(database);
+				if (value == null)
+					return null;
+				values.put(database, value);
+				LOG.debug("Built " + description + " for " + database + " in " + (System.currentTimeMillis() - before) / 1000d + "s");
+			}
+			return value;
+		}
+	}
+
+	private void rebuildInBackground(String database) {
+		if (rebuildsInProgress.add(database))
+			rebuildExecutor.execute(() -> {
+				try {
+					getUpToDate(database);
+				} catch (Exception e) {
+					LOG.warn("Unable to rebuild " + description + " for " + database, e);
+				} finally {
+					rebuildsInProgress.remove(database);
+				}
+			});
+	}
+
+	/**
+	 * Drops the given database's value (it will be rebuilt when next needed)
+	 */
+	public void invalidate(String database) {
+		values.remove(database);
+	}
+}